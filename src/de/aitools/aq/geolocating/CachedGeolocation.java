@@ -0,0 +1,54 @@
+package de.aitools.aq.geolocating;
+
+import java.time.Instant;
+
+/**
+ * The result of a {@link Geolocator} for an IP address and the time span for
+ * which it is valid (see {@link Geolocator#setCacheCapacity(int)}).
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+final class CachedGeolocation {
+  
+  private final Instant validFrom;
+  
+  private final Instant validUntil;
+  
+  private final String countryCode;
+  
+  private final String timeZone;
+  
+  CachedGeolocation(
+      final Instant validFrom, final Instant validUntil,
+      final Geolocation geolocation) {
+    if (validFrom == null) { throw new NullPointerException(); }
+    if (validUntil == null) { throw new NullPointerException(); }
+    this.validFrom = validFrom;
+    this.validUntil = validUntil;
+    if (geolocation == null) {
+      this.countryCode = null;
+      this.timeZone = null;
+    } else {
+      this.countryCode = geolocation.getCountryCode();
+      this.timeZone = geolocation.getTimeZone();
+    }
+  }
+  
+  boolean isValidAt(final Instant time) {
+    return !time.isBefore(this.validFrom) && time.isBefore(this.validUntil);
+  }
+  
+  /**
+   * Gets a new geolocation with the cached values, or null if there was no
+   * geolocation.
+   */
+  Geolocation getGeolocation() {
+    if (this.countryCode == null) { return null; }
+    final Geolocation geolocation = new Geolocation();
+    geolocation.setCountryCode(this.countryCode);
+    geolocation.setTimeZone(this.timeZone);
+    return geolocation;
+  }
+
+}
@@ -16,7 +16,10 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
@@ -27,6 +30,7 @@ import de.aitools.aq.geolocating.collector.GeolocationCollector;
 import de.aitools.aq.geolocating.collector.GeolocationConsistency;
 import de.aitools.aq.geolocating.collector.Geolocations;
 import de.aitools.aq.geolocating.collector.IpBlock;
+import de.aitools.aq.geolocating.collector.LazyGeolocations;
 import de.aitools.aq.geolocating.iplocations.IplocationIpBlocks;
 import de.aitools.aq.geolocating.rir.RirIpBlocks;
 
@@ -60,6 +64,14 @@ public class Geolocator {
   protected final GeolocationCollector<?> collector;
   
   protected final DecisionNode<Geolocations, Boolean> decisionTree;
+  
+  /**
+   * Cached results by IP in order of last access, or null if results are not
+   * cached.
+   */
+  private Map<Long, CachedGeolocation> cache;
+  
+  private PrefixCache prefixCache;
 
   /**
    * Creates a geolocator that geolocates using the information collected by
@@ -90,6 +102,78 @@ public class Geolocator {
     if (decisionTree == null) { throw new NullPointerException(); }
     this.collector = collector;
     this.decisionTree = decisionTree;
+    this.cache = null;
+    this.prefixCache = null;
+  }
+  
+  /**
+   * Sets for how many IP addresses the last result is cached, or 0 to not
+   * cache results (default).
+   * <p>
+   * A result is reused for a later query of the same IP address if the time
+   * of the query is within the validity of the collected geolocations (see
+   * {@link Geolocations#getValidFrom()} and
+   * {@link Geolocations#getValidUntil()}), as the geolocations are then the
+   * same except for their instant. So the results are the same as without
+   * cache as long as the decision tree and {@link #geolocate(Geolocations)}
+   * do not use {@link Geolocations#getInstant()} directly, which the
+   * {@link #createDefaultDecisionTree(boolean) default tree} does not. For
+   * logs in which the same IP addresses appear again and again, this saves
+   * most of the collecting. Decision trees that count their decisions do
+   * then only count the ones for results that were not cached, though. Only
+   * the country code and time zone of a geolocation are cached.
+   * </p><p>
+   * If results for more IP addresses would be cached than the capacity, the
+   * one used least recently is removed. Setting the capacity clears the
+   * cache.
+   * </p>
+   * @param capacity The maximum number of IP addresses to cache results for
+   * @throws IllegalArgumentException If the capacity is negative
+   */
+  public void setCacheCapacity(final int capacity)
+  throws IllegalArgumentException {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Negative capacity: " + capacity);
+    }
+    if (capacity == 0) {
+      this.cache = null;
+    } else {
+      this.cache = Collections.synchronizedMap(
+          new LinkedHashMap<Long, CachedGeolocation>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<Long, CachedGeolocation> eldest) {
+              return this.size() > capacity;
+            }
+          });
+    }
+  }
+  
+  /**
+   * Sets the cache that is asked before the cache by IP (see
+   * {@link #setCacheCapacity(int)}) and before collecting, or null to not use
+   * one (default).
+   * <p>
+   * The prefix cache holds one result for all IP addresses that share a
+   * prefix if the data of the collector is the same for all of them. The same
+   * restrictions as for the cache by IP apply, and in addition the decision
+   * tree and {@link #geolocate(Geolocations)} must not use
+   * {@link Geolocations#getIp()}. As the cache holds results of this
+   * geolocator, it should not be shared with other geolocators.
+   * </p>
+   * @param prefixCache The cache
+   */
+  public void setPrefixCache(final PrefixCache prefixCache) {
+    this.prefixCache = prefixCache;
+  }
+  
+  /**
+   * Gets the cache set by {@link #setPrefixCache(PrefixCache)}, e.g., to
+   * check its hit rate.
+   */
+  public PrefixCache getPrefixCache() {
+    return this.prefixCache;
   }
   
   /**
@@ -102,14 +186,57 @@ public class Geolocator {
   public Geolocalization geolocate(
       final InetAddress address, final Instant time) {
     final Geolocalization geolocalization =  new Geolocalization(address, time);
+    final Geolocation geolocation = this.cache == null && this.prefixCache == null
+        ? this.geolocateWithoutCache(address, time)
+        : this.geolocateWithCache(address, time);
+    if (geolocation != null) {
+      geolocalization.setGeolocation(geolocation);
+    }
+    return geolocalization;
+  }
+  
+  private Geolocation geolocateWithoutCache(
+      final InetAddress address, final Instant time) {
     final Geolocations geolocalisations = this.collector.collect(address, time);
-    if (geolocalisations != null) {
-      final Geolocation geolocation = this.geolocate(geolocalisations);
-      if (geolocation != null) {
-        geolocalization.setGeolocation(geolocation);
+    if (geolocalisations == null) { return null; }
+    return this.geolocate(geolocalisations);
+  }
+  
+  /**
+   * Geolocates the IP address at the time like
+   * {@link #geolocate(InetAddress, Instant)}, but takes the result from the
+   * prefix cache or the cache by IP if it is valid for the time there, and
+   * puts it into them otherwise.
+   */
+  private Geolocation geolocateWithCache(
+      final InetAddress address, final Instant time) {
+    final long ip = IpBlock.addressToLong(address);
+    final PrefixCache prefixCache = this.prefixCache;
+    if (prefixCache != null) {
+      final CachedGeolocation cached = prefixCache.get(ip, time);
+      if (cached != null) { return cached.getGeolocation(); }
+    }
+    final Map<Long, CachedGeolocation> cache = this.cache;
+    if (cache != null) {
+      final CachedGeolocation cached = cache.get(ip);
+      if (cached != null && cached.isValidAt(time)) {
+        return cached.getGeolocation();
       }
     }
-    return geolocalization;
+
+    final Geolocations geolocalisations = this.collector.collect(address, time);
+    if (geolocalisations == null) { return null; }
+    final Geolocation geolocation = this.geolocate(geolocalisations);
+    final CachedGeolocation cached = new CachedGeolocation(
+        geolocalisations.getValidFrom(), geolocalisations.getValidUntil(),
+        geolocation);
+    if (cache != null) {
+      cache.put(ip, cached);
+    }
+    if (prefixCache != null) {
+      prefixCache.put(ip, cached, this.collector);
+    }
+    return geolocation;
   }
   
   /**
@@ -331,6 +458,9 @@ public class Geolocator {
    * from a file via a {@link Geolocator} by given factory, and write the
    * geolocalizations to a file. The decision tree employed by the geolocator
    * is printed to standard out at the end. 
+   * </p><p>
+   * The collector creates {@link LazyGeolocations}, so that the decision
+   * tree only computes what it asks for.
    * </p>
    * @param args Command line arguments (start the program without arguments
    * to see its usage)
@@ -357,7 +487,7 @@ public class Geolocator {
     try {
       System.out.println(new Date() + "  LOADING");
       final GeolocationCollector<?> collector =
-          GeolocationCollector.create(iplocationsDirectory, rirDirectory);
+          GeolocationCollector.createLazy(iplocationsDirectory, rirDirectory);
       final Geolocator geolocator = factory.apply(collector);
       System.out.println(new Date() + "  GEOLOCATING");
       geolocator.geolocate(input, dateFormat)
@@ -383,12 +513,20 @@ public class Geolocator {
   /**
    * Uses {@link #main(String[], Function)} with a default decision tree
    * (see {@link #createDefaultDecisionTree(boolean)}).
+   * <p>
+   * As the default tree does not take inconsistent geolocations, the
+   * collector stops at the first inconsistency (see
+   * {@link GeolocationCollector#setStopAtInconsistency(boolean)}).
+   * </p>
    * @param args Command line arguments (start the program without arguments
    * to see its usage)
    * @throws IOException If an error occurred on reading or writing
    */
   public static void main(final String[] args) throws IOException {
-    Geolocator.main(args, collector -> new Geolocator(collector));
+    Geolocator.main(args, collector -> {
+      collector.setStopAtInconsistency(true);
+      return new Geolocator(collector);
+    });
   }
 
 }
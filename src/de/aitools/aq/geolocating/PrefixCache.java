@@ -0,0 +1,189 @@
+package de.aitools.aq.geolocating;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.aitools.aq.geolocating.collector.GeolocationCollector;
+
+/**
+ * Cache of {@link Geolocator} results for IP addresses that share a prefix,
+ * like all addresses of a /24 network.
+ * <p>
+ * A result is only cached for a prefix if all its addresses get the same
+ * geolocations from the collector (see
+ * {@link GeolocationCollector#isHomogeneous(long, long)}). Whether this is
+ * the case is checked once per prefix, when the first result for the prefix
+ * is put into the cache. Like for the cache by IP of the geolocator, a result
+ * is then used for queries at times within the span for which it is valid,
+ * and replaced by the next result for the prefix otherwise.
+ * </p><p>
+ * The cache holds at most a given number of prefixes (including the ones
+ * that are not homogeneous) and removes the prefix used least recently if
+ * there would be more. It can be used by several threads at the same time.
+ * If the collector of the geolocator changes, like when the data is loaded
+ * again, the cache has to be {@link #clear() cleared}.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class PrefixCache {
+  
+  public static final int DEFAULT_PREFIX_LENGTH = 24;
+  
+  private static final int IP_LENGTH = 32;
+  
+  private final int prefixLength;
+  
+  private final Map<Long, Entry> entries;
+  
+  private final AtomicLong hits;
+  
+  private final AtomicLong misses;
+  
+  /**
+   * Creates a cache for prefixes of {@link #DEFAULT_PREFIX_LENGTH} bits.
+   * @param capacity The maximum number of prefixes to hold
+   * @throws IllegalArgumentException If the capacity is not positive
+   */
+  public PrefixCache(final int capacity)
+  throws IllegalArgumentException {
+    this(capacity, DEFAULT_PREFIX_LENGTH);
+  }
+  
+  /**
+   * Creates a cache.
+   * @param capacity The maximum number of prefixes to hold
+   * @param prefixLength The number of leading bits of the IPv4 addresses that
+   * form the prefix (like 24 or 16)
+   * @throws IllegalArgumentException If the capacity is not positive or the
+   * prefix length is not between 0 and 32
+   */
+  public PrefixCache(final int capacity, final int prefixLength)
+  throws IllegalArgumentException {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity not positive: " + capacity);
+    }
+    if (prefixLength < 0 || prefixLength > IP_LENGTH) {
+      throw new IllegalArgumentException(
+          "Invalid prefix length: " + prefixLength);
+    }
+    this.prefixLength = prefixLength;
+    this.entries = Collections.synchronizedMap(
+        new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+          @Override
+          protected boolean removeEldestEntry(
+              final Map.Entry<Long, Entry> eldest) {
+            return this.size() > capacity;
+          }
+        });
+    this.hits = new AtomicLong();
+    this.misses = new AtomicLong();
+  }
+  
+  public int getPrefixLength() {
+    return this.prefixLength;
+  }
+  
+  /**
+   * Gets the number of queries that were answered from the cache.
+   */
+  public long getHits() {
+    return this.hits.get();
+  }
+  
+  /**
+   * Gets the number of queries that were not answered from the cache.
+   */
+  public long getMisses() {
+    return this.misses.get();
+  }
+  
+  /**
+   * Gets the fraction of queries that were answered from the cache, or NaN if
+   * there were no queries yet.
+   */
+  public double getHitRate() {
+    final long hits = this.getHits();
+    final long queries = hits + this.getMisses();
+    return queries == 0 ? Double.NaN : (double) hits / queries;
+  }
+  
+  /**
+   * Removes all prefixes and resets the hit and miss counts.
+   * <p>
+   * Call this when the data of the collector changes.
+   * </p>
+   */
+  public void clear() {
+    this.entries.clear();
+    this.hits.set(0);
+    this.misses.set(0);
+  }
+  
+  @Override
+  public String toString() {
+    return "prefix cache /" + this.prefixLength + ": "
+        + this.entries.size() + " prefixes, "
+        + this.getHits() + " hits, " + this.getMisses() + " misses";
+  }
+  
+  /**
+   * Gets the cached result for the prefix of the IP if it is valid at the
+   * time, or null otherwise.
+   */
+  CachedGeolocation get(final long ip, final Instant time) {
+    final Entry entry = this.entries.get(this.getPrefix(ip));
+    if (entry != null) {
+      final CachedGeolocation cached = entry.cached;
+      if (cached != null && cached.isValidAt(time)) {
+        this.hits.incrementAndGet();
+        return cached;
+      }
+    }
+    this.misses.incrementAndGet();
+    return null;
+  }
+  
+  /**
+   * Puts the result for the IP as the one for its prefix if the collector
+   * gives the same geolocations for all IPs of the prefix.
+   */
+  void put(final long ip, final CachedGeolocation cached,
+      final GeolocationCollector<?> collector) {
+    final long prefix = this.getPrefix(ip);
+    final Entry entry = this.entries.get(prefix);
+    if (entry == null) {
+      final int suffixLength = IP_LENGTH - this.prefixLength;
+      final long firstIp = prefix << suffixLength;
+      final long lastIp = firstIp + (1L << suffixLength) - 1;
+      final boolean homogeneous = collector.isHomogeneous(firstIp, lastIp);
+      this.entries.put(prefix, new Entry(homogeneous ? cached : null));
+    } else if (entry.cached != null) {
+      entry.cached = cached;
+    }
+  }
+  
+  private long getPrefix(final long ip) {
+    return ip >>> (IP_LENGTH - this.prefixLength);
+  }
+  
+  /**
+   * The cached result of a prefix, which is null if the prefix is not
+   * homogeneous.
+   */
+  private static final class Entry {
+    
+    private volatile CachedGeolocation cached;
+    
+    private Entry(final CachedGeolocation cached) {
+      this.cached = cached;
+    }
+    
+  }
+
+}
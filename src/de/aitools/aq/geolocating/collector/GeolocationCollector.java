@@ -5,13 +5,14 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.function.Supplier;
 
+import de.aitools.aq.geolocating.Geolocator;
 import de.aitools.aq.geolocating.iplocations.IplocationGeolocation;
 import de.aitools.aq.geolocating.iplocations.IplocationIpBlocks;
+import de.aitools.aq.geolocating.rir.RirCandidates;
 import de.aitools.aq.geolocating.rir.RirIpBlock;
 import de.aitools.aq.geolocating.rir.RirIpBlockEntry;
 import de.aitools.aq.geolocating.rir.RirIpBlocks;
@@ -28,10 +29,20 @@ public class GeolocationCollector<G extends Geolocations> {
   
   private final Supplier<G> geolocationsFactory;
   
-  private final List<IplocationIpBlocks> iplocations;
+  /**
+   * The IPlocation databases sorted by time.
+   */
+  private final IplocationIpBlocks[] iplocations;
+  
+  /**
+   * The time of each IPlocation database in {@link #iplocations}.
+   */
+  private final Instant[] iplocationTimes;
   
   private final RirIpBlocks rir;
   
+  private boolean stopAtInconsistency;
+  
   /**
    * Creates a new {@link GeolocationCollector} using the data in the
    * iplocationsDirectory and the rirDirectory.
@@ -53,10 +64,17 @@ public class GeolocationCollector<G extends Geolocations> {
   throws IOException {
     if (geolocationsFactory == null) { throw new NullPointerException(); }
     this.geolocationsFactory = geolocationsFactory;
-    this.iplocations = IplocationIpBlocks.deserializeAll(
-        iplocationsDirectory);
+    final List<IplocationIpBlocks> iplocations =
+        IplocationIpBlocks.deserializeAll(iplocationsDirectory);
+    this.iplocations =
+        iplocations.toArray(new IplocationIpBlocks[iplocations.size()]);
+    this.iplocationTimes = new Instant[this.iplocations.length];
+    for (int i = 0; i < this.iplocations.length; ++i) {
+      this.iplocationTimes[i] = this.iplocations[i].getTime();
+    }
     this.rir = RirIpBlocks.deserialize(
         new File(rirDirectory, RirIpBlocks.RIR_FILENAME));
+    this.stopAtInconsistency = false;
   }
 
   /**
@@ -76,6 +94,64 @@ public class GeolocationCollector<G extends Geolocations> {
         iplocationsDirectory, rirDirectory, () -> new Geolocations());
   }
   
+  /**
+   * Creates a new {@link GeolocationCollector} like
+   * {@link #create(File, File)}, but that collects {@link LazyGeolocations},
+   * which compute their country code, time zone, and consistency only when
+   * they are first asked for.
+   * @param iplocationsDirectory Directory containing the parsed IPlocation
+   * databases (see {@link IplocationIpBlocks#main(String[])})
+   * @param rirDirectory Directory containing the parsed RIR database (see
+   * {@link RirIpBlocks#main(String[])})
+   * @throws IOException If an error occurred reading the RIR or IPlocation
+   * databases 
+   */
+  public static GeolocationCollector<LazyGeolocations> createLazy(
+      final File iplocationsDirectory, final File rirDirectory)
+  throws IOException {
+    return new GeolocationCollector<>(
+        iplocationsDirectory, rirDirectory, () -> new LazyGeolocations());
+  }
+  
+  /**
+   * Sets whether to stop looking up IPlocation databases for an IP address
+   * as soon as the geolocations are known to be
+   * {@link GeolocationConsistency#INCONSISTENT} (default: false).
+   * <p>
+   * The databases are then looked up from the ones closest to the time
+   * instant outwards, and {@link Geolocations#getIplocationGeolocations()}
+   * contains only the geolocations found until then. The consistency of the
+   * geolocations is the same as without stopping. Use this only if the
+   * geolocations are not used any further when they are inconsistent, like
+   * in the {@link Geolocator#createDefaultDecisionTree(boolean) default
+   * decision tree}. This should be set before collecting.
+   * </p>
+   */
+  public void setStopAtInconsistency(final boolean stopAtInconsistency) {
+    this.stopAtInconsistency = stopAtInconsistency;
+  }
+
+  /**
+   * Checks whether collecting for any IP address from first to last
+   * (inclusive) gives the same geolocations at every instant, except for the
+   * IP address itself.
+   * <p>
+   * This is the case if all these addresses are in the same block (or all in
+   * no block) of the RIR data and of each IPlocation database. Otherwise,
+   * the geolocations may or may not be the same.
+   * </p>
+   * @param firstIp The first IP as encoded by {@link IpBlock#ipToLong(String)}
+   * @param lastIp The last IP as encoded by {@link IpBlock#ipToLong(String)}
+   * @return Whether the geolocations are the same
+   */
+  public boolean isHomogeneous(final long firstIp, final long lastIp) {
+    if (!this.rir.isWithinOneBlock(firstIp, lastIp)) { return false; }
+    for (final IplocationIpBlocks iplocation : this.iplocations) {
+      if (!iplocation.isWithinOneBlock(firstIp, lastIp)) { return false; }
+    }
+    return true;
+  }
+
   /**
    * Collects all {@link Geolocations} for given IP address at given time
    * instant.
@@ -91,14 +167,13 @@ public class GeolocationCollector<G extends Geolocations> {
     final G geolocalisations =
         this.collectGeolocations(ip, time);
     if (geolocalisations.getRirStart() != null) {
-      GeolocationCollector.setCountryAndTimeZone(geolocalisations);
-      GeolocationCollector.setConsistency(geolocalisations);
+      geolocalisations.finishCollection();
     }
     
     return geolocalisations;
   }
   
-  private static void setCountryAndTimeZone(
+  static void setCountryAndTimeZone(
       final Geolocations geolocalisations) {
     
     final Set<String> rirCountryCodeCandidates =
@@ -155,66 +230,67 @@ public class GeolocationCollector<G extends Geolocations> {
     
   }
   
-  private static void setConsistency(final Geolocations geolocalisations) {
-    geolocalisations.setConsistency(GeolocationConsistency.INCONSISTENT);
-
-    final Set<String> countryCodes =
-        GeolocationCollector.getConsistentCountryCodes(geolocalisations);
-    if (countryCodes.size() == 1) {
-      geolocalisations.setConsistency(
-          GeolocationConsistency.COUNTRY_CONSISTENT);
-      
-      final Set<String> timeZones =
-          GeolocationCollector.getConsistentTimeZones(geolocalisations);
-      if (timeZones.size() == 1) {
-        geolocalisations.setConsistency(
-            GeolocationConsistency.TIME_ZONE_CONSISTENT);
-      }
-    }
+  /**
+   * Sets the consistency of the geolocations, which is
+   * {@link GeolocationConsistency#COUNTRY_CONSISTENT} if all IPlocation
+   * geolocations have the same country and it is a RIR candidate (or if there
+   * are none and exactly one RIR candidate), and
+   * {@link GeolocationConsistency#TIME_ZONE_CONSISTENT} if the same holds
+   * for the time zones in addition.
+   * <p>
+   * Countries and time zones are compared by their indices and checked
+   * against the bitsets of the {@link RirCandidates}.
+   * </p>
+   */
+  static void setConsistency(final Geolocations geolocalisations) {
+    geolocalisations.setConsistency(
+        GeolocationCollector.getConsistency(geolocalisations));
   }
   
-  private static Set<String> getConsistentCountryCodes(
+  private static GeolocationConsistency getConsistency(
       final Geolocations geolocalisations) {
-    final Set<String> consistent =
-        new HashSet<>(geolocalisations.getRirCountryCodeCandidates());
-    
-    for (final IplocationGeolocation geolocalisation
-        : geolocalisations.getIplocationGeolocations()) {
-      final String countryCode = geolocalisation.getCountryCode();
-      if (!consistent.contains(countryCode)) {
-        consistent.clear();
-        return consistent;
+    final RirCandidates rirCandidates = geolocalisations.getRirCandidates();
+    final List<IplocationGeolocation> iplocationGeolocations =
+        geolocalisations.getIplocationGeolocations();
+    final int numGeolocations = iplocationGeolocations.size();
+
+    if (numGeolocations == 0) {
+      if (rirCandidates.getCountryCodes().size() != 1) {
+        return GeolocationConsistency.INCONSISTENT;
+      } else if (rirCandidates.getTimeZones().size() != 1) {
+        return GeolocationConsistency.COUNTRY_CONSISTENT;
       } else {
-        if (consistent.size() > 1) {
-          consistent.clear();
-          consistent.add(countryCode);
-        }
+        return GeolocationConsistency.TIME_ZONE_CONSISTENT;
       }
     }
-    
-    return consistent;
-  }
-  
-  private static Set<String> getConsistentTimeZones(
-      final Geolocations geolocalisations) {
-    final Set<String> consistent =
-        new HashSet<>(geolocalisations.getRirTimeZoneCandidates());
-    
-    for (final IplocationGeolocation geolocalisation
-        : geolocalisations.getIplocationGeolocations()) {
-      final String timeZone = geolocalisation.getTimeZone();
-      if (!consistent.contains(timeZone)) {
-        consistent.clear();
-        return consistent;
-      } else {
-        if (consistent.size() > 1) {
-          consistent.clear();
-          consistent.add(timeZone);
-        }
+
+    final IplocationGeolocation first = iplocationGeolocations.get(0);
+    final String countryCode = first.getCountryCode();
+    final int countryIndex = first.getCountryIndex();
+    if (!rirCandidates.containsCountryCode(countryIndex, countryCode)) {
+      return GeolocationConsistency.INCONSISTENT;
+    }
+    final int timeZoneIndex = first.getTimeZoneIndex();
+    boolean timeZoneConsistent = rirCandidates.containsTimeZone(timeZoneIndex);
+
+    for (int g = 1; g < numGeolocations; ++g) {
+      final IplocationGeolocation geolocation = iplocationGeolocations.get(g);
+      final int otherCountryIndex = geolocation.getCountryIndex();
+      if (otherCountryIndex != countryIndex || (countryIndex < 0
+          && !countryCode.equals(geolocation.getCountryCode()))) {
+        return GeolocationConsistency.INCONSISTENT;
+      }
+      if (timeZoneConsistent
+          && geolocation.getTimeZoneIndex() != timeZoneIndex) {
+        timeZoneConsistent = false;
       }
     }
-    
-    return consistent;
+
+    if (timeZoneConsistent) {
+      return GeolocationConsistency.TIME_ZONE_CONSISTENT;
+    } else {
+      return GeolocationConsistency.COUNTRY_CONSISTENT;
+    }
   }
   
   /*
@@ -230,8 +306,7 @@ public class GeolocationCollector<G extends Geolocations> {
     if (start != null) {
       Instant end = geolocations.getRirEnd();
       if (end == null) { end = Instant.MAX; }
-      geolocations.addIplocation(
-          this.getIplocationGeolocations(ip, start, end));
+      this.addIplocationGeolocations(geolocations, ip, start, end);
     }
     
     return geolocations;
@@ -247,7 +322,10 @@ public class GeolocationCollector<G extends Geolocations> {
     if (block == null) { return geolocations; }
     RirIpBlockEntry entry = block.getFirst();
     if (entry == null) { return geolocations; }
-    if (time.compareTo(entry.getStart()) < 0) { return geolocations; }
+    if (time.compareTo(entry.getStart()) < 0) {
+      geolocations.setValidUntil(entry.getStart());
+      return geolocations;
+    }
 
     RirIpBlockEntry nextEntry = entry.getNext();
     while (nextEntry != null && nextEntry.getStart().compareTo(time) <= 0) {
@@ -256,28 +334,157 @@ public class GeolocationCollector<G extends Geolocations> {
     }
 
     geolocations.setRirStart(entry.getStart());
+    geolocations.setValidFrom(entry.getStart());
     if (nextEntry != null) {
       geolocations.setRirEnd(nextEntry.getStart());
+      geolocations.setValidUntil(nextEntry.getStart());
     }
-    geolocations.setRirGeolocations(entry.getCountryCodes());
+    geolocations.setRirCandidates(entry.getCandidates());
     return geolocations;
   }
 
-  private List<IplocationGeolocation> getIplocationGeolocations(
+  /**
+   * Adds the geolocations of all IPlocation databases from start to end
+   * (inclusive) to the geolocations, which are found in order of time.
+   */
+  private void addIplocationGeolocations(final G geolocations,
       final long ip, final Instant start, final Instant end) {
-    final List<IplocationGeolocation> geolocations = new
-        ArrayList<>(this.iplocations.size());
-    for (final IplocationIpBlocks blocks : this.iplocations) {
-      if (start.compareTo(blocks.getTime()) <= 0
-          && blocks.getTime().compareTo(end) <= 0) {
-        final IplocationGeolocation geolocation =
-            blocks.getGeolocation(ip);
-        if (geolocation != null) {
-          geolocations.add(geolocation);
-        }
+    final int first = this.getFirstIplocationIndex(start, true);
+    final int last = this.getFirstIplocationIndex(end, false);
+    final int afterInstant =
+        this.getFirstIplocationIndex(geolocations.getInstant(), false);
+    final int next = Math.max(first, Math.min(last, afterInstant));
+    this.restrictValidity(geolocations, afterInstant);
+    if (this.stopAtInconsistency) {
+      this.addIplocationGeolocationsUntilInconsistent(
+          geolocations, ip, first, next, last);
+      return;
+    }
+
+    final List<IplocationGeolocation> iplocationGeolocations =
+        new ArrayList<>(Math.max(0, last - first));
+    int numNotAfterInstant = 0;
+    for (int i = first; i < last; ++i) {
+      if (i == next) {
+        numNotAfterInstant = iplocationGeolocations.size();
+      }
+      final IplocationGeolocation geolocation =
+          this.iplocations[i].getGeolocation(ip);
+      if (geolocation != null) {
+        iplocationGeolocations.add(geolocation);
       }
     }
-    return geolocations;
+    if (next >= last) {
+      numNotAfterInstant = iplocationGeolocations.size();
+    }
+    geolocations.addIplocation(iplocationGeolocations, numNotAfterInstant);
+  }
+
+  /**
+   * Adds the geolocations of the IPlocation databases from first to last
+   * (exclusive) like {@link #addIplocationGeolocations(Geolocations, long,
+   * Instant, Instant)}, but looks them up alternating before and after the
+   * instant (starting at next) and stops at the first one that makes the
+   * geolocations inconsistent.
+   */
+  private void addIplocationGeolocationsUntilInconsistent(
+      final G geolocations, final long ip,
+      final int first, final int next, final int last) {
+    final RirCandidates rirCandidates = geolocations.getRirCandidates();
+    // Geolocations before the instant in reverse order
+    final List<IplocationGeolocation> before = new ArrayList<>();
+    final List<IplocationGeolocation> after = new ArrayList<>();
+    int b = next - 1;
+    int a = next;
+    while (b >= first || a < last) {
+      if (b >= first && this.addIplocationGeolocation(
+          b--, ip, before, after, rirCandidates)) {
+        break;
+      }
+      if (a < last && this.addIplocationGeolocation(
+          a++, ip, after, before, rirCandidates)) {
+        break;
+      }
+    }
+
+    final List<IplocationGeolocation> iplocationGeolocations =
+        new ArrayList<>(before.size() + after.size());
+    for (int i = before.size() - 1; i >= 0; --i) {
+      iplocationGeolocations.add(before.get(i));
+    }
+    iplocationGeolocations.addAll(after);
+    geolocations.addIplocation(iplocationGeolocations, before.size());
+  }
+
+  /**
+   * Adds the geolocation of the IPlocation database at the index (if there is
+   * one) to the hits and returns whether it makes the geolocations
+   * inconsistent, which is the case if its country is not a RIR candidate or
+   * differs from the one of the geolocations added before (which all have the
+   * same country, as they would be inconsistent otherwise).
+   */
+  private boolean addIplocationGeolocation(final int index, final long ip,
+      final List<IplocationGeolocation> hits,
+      final List<IplocationGeolocation> otherHits,
+      final RirCandidates rirCandidates) {
+    final IplocationGeolocation geolocation =
+        this.iplocations[index].getGeolocation(ip);
+    if (geolocation == null) { return false; }
+    hits.add(geolocation);
+
+    final String countryCode = geolocation.getCountryCode();
+    final int countryIndex = geolocation.getCountryIndex();
+    if (!rirCandidates.containsCountryCode(countryIndex, countryCode)) {
+      return true;
+    }
+    final List<IplocationGeolocation> previousHits =
+        hits.size() > 1 ? hits : otherHits;
+    if (previousHits.isEmpty()) { return false; }
+    final IplocationGeolocation previous = previousHits.get(0);
+    return previous.getCountryIndex() != countryIndex
+        || (countryIndex < 0 && !countryCode.equals(previous.getCountryCode()));
+  }
+
+  /**
+   * Restricts the validity of the geolocations to the time between the
+   * IPlocation databases before and at the index, as another instant in
+   * between would have the same databases before and after it.
+   */
+  private void restrictValidity(
+      final G geolocations, final int afterInstant) {
+    if (afterInstant > 0) {
+      final Instant before = this.iplocationTimes[afterInstant - 1];
+      if (before.isAfter(geolocations.getValidFrom())) {
+        geolocations.setValidFrom(before);
+      }
+    }
+    if (afterInstant < this.iplocationTimes.length) {
+      final Instant after = this.iplocationTimes[afterInstant];
+      if (after.isBefore(geolocations.getValidUntil())) {
+        geolocations.setValidUntil(after);
+      }
+    }
+  }
+
+  /**
+   * Gets the index of the first IPlocation database with a time after the
+   * given one (or at it if <tt>inclusive</tt>), or the number of databases if
+   * there is no such database.
+   */
+  private int getFirstIplocationIndex(
+      final Instant time, final boolean inclusive) {
+    int low = 0;
+    int high = this.iplocationTimes.length;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      final int comparison = this.iplocationTimes[middle].compareTo(time);
+      if (comparison > 0 || (inclusive && comparison == 0)) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    return low;
   }
 
 }
@@ -4,7 +4,6 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -19,8 +18,7 @@ import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 import de.aitools.aq.geolocating.iplocations.IplocationGeolocation;
 import de.aitools.aq.geolocating.jaxb.Jaxbs;
 import de.aitools.aq.geolocating.jaxb.XmlInstantAdapter;
-import de.aitools.aq.geolocating.timezones.TimeZones;
-import de.aitools.aq.geolocating.timezones.TimeZones.TimeZone;
+import de.aitools.aq.geolocating.rir.RirCandidates;
 
 /**
  * Class that stores the golocation informations collected by a
@@ -62,6 +60,8 @@ public class Geolocations {
   
   private Instant rirEnd;
   
+  private RirCandidates rirCandidates;
+  
   private Set<String> rirCountryCodeCandidates;
   
   private Set<String> rirTimeZoneCandidates;
@@ -70,6 +70,10 @@ public class Geolocations {
   
   private int nextIplocationIndex;
   
+  private Instant validFrom;
+  
+  private Instant validUntil;
+  
   public Geolocations() {
     this.ip = null;
     this.instant = null;
@@ -78,10 +82,13 @@ public class Geolocations {
     this.consistency = null;
     this.rirStart = null;
     this.rirEnd = null;
-    this.rirCountryCodeCandidates = new HashSet<>(1);
-    this.rirTimeZoneCandidates = new HashSet<>();
+    this.rirCandidates = RirCandidates.NONE;
+    this.rirCountryCodeCandidates = this.rirCandidates.getCountryCodes();
+    this.rirTimeZoneCandidates = this.rirCandidates.getTimeZones();
     this.iplocationGeolocations = new ArrayList<>();
     this.nextIplocationIndex = -1;
+    this.validFrom = Instant.MIN;
+    this.validUntil = Instant.MAX;
   }
 
   /**
@@ -164,6 +171,8 @@ public class Geolocations {
    * The RIR data has some flaws were different registry files assign the
    * same IP addresses at the same time to different countries. All such
    * different countries are listed here. 
+   * </p><p>
+   * The set can not be modified.
    * </p>
    */
   @XmlElement(name = "rirCountryCodeCandidate", required = false)
@@ -176,7 +185,7 @@ public class Geolocations {
    * Gets possible candidates for the time zone according to RIR.
    * <p>
    * This is just all time zones for all country code candidates (see
-   * {@link #getRirCountryCodeCandidates()}).
+   * {@link #getRirCountryCodeCandidates()}). The set can not be modified.
    * </p>
    */
   @XmlElement(name = "rirTimeZoneCandidate", required = false)
@@ -185,6 +194,15 @@ public class Geolocations {
   }
 
 
+  /**
+   * Gets the RIR candidates of {@link #getRirCountryCodeCandidates()} and
+   * {@link #getRirTimeZoneCandidates()}, which can also be checked by index.
+   */
+  public RirCandidates getRirCandidates() {
+    return this.rirCandidates;
+  }
+
+
   /**
    * Gets all IPlocation geolocations for the IP address that fall within
    * {@link #getRirStart()} and {@link #getRirEnd()}.
@@ -234,6 +252,33 @@ public class Geolocations {
     }
   }
 
+  /**
+   * Gets the first instant for which collecting the geolocations of the IP
+   * address gives the same geolocations as for {@link #getInstant()} (except
+   * for the instant itself).
+   * <p>
+   * This is the later one of the start of the RIR entry and the time of the
+   * last IPlocation database not after the instant, or {@link Instant#MIN}.
+   * </p>
+   */
+  public Instant getValidFrom() {
+    return this.validFrom;
+  }
+
+
+  /**
+   * Gets the instant until which (exclusive) collecting the geolocations of
+   * the IP address gives the same geolocations as for {@link #getInstant()}
+   * (except for the instant itself).
+   * <p>
+   * This is the earlier one of the end of the RIR entry and the time of the
+   * first IPlocation database after the instant, or {@link Instant#MAX}.
+   * </p>
+   */
+  public Instant getValidUntil() {
+    return this.validUntil;
+  }
+
   public void setIp(final String ip) {
     this.ip = ip;
   }
@@ -262,6 +307,16 @@ public class Geolocations {
     this.rirEnd = rirEnd;
   }
   
+  public void setValidFrom(final Instant validFrom) {
+    if (validFrom == null) { throw new NullPointerException(); }
+    this.validFrom = validFrom;
+  }
+  
+  public void setValidUntil(final Instant validUntil) {
+    if (validUntil == null) { throw new NullPointerException(); }
+    this.validUntil = validUntil;
+  }
+  
   public void setNextIplocationIndex(final int nextIplocationIndex) {
     this.nextIplocationIndex = nextIplocationIndex;
   }
@@ -296,26 +351,78 @@ public class Geolocations {
     }
   }
   
-  public void setRirGeolocations(final Iterable<String> countryCodeCandidates) {
-    this.rirCountryCodeCandidates.clear();
-    this.rirTimeZoneCandidates.clear();
-    
-    for (final String countryCode : countryCodeCandidates) {
-      final List<TimeZone> timeZones = TimeZones.forCountryCode(countryCode);
-      if (!timeZones.isEmpty()) { // Something like EU or GB
-        this.rirCountryCodeCandidates.add(countryCode);
-      }
-      for (final TimeZone timeZone : timeZones) {
-        this.rirTimeZoneCandidates.add(timeZone.getId().toString());
-      }
+  /**
+   * Adds the geolocations like {@link #addIplocation(List)}, but for
+   * geolocations that are already sorted by their source time and of which
+   * the first <tt>numNotAfterInstant</tt> are not after {@link #getInstant()}.
+   * <p>
+   * If no geolocations were added before, this neither sorts nor searches.
+   * </p>
+   */
+  public void addIplocation(
+      final List<IplocationGeolocation> sortedIplocationGeolocations,
+      final int numNotAfterInstant) {
+    if (!this.getIplocationGeolocations().isEmpty()) {
+      this.addIplocation(sortedIplocationGeolocations);
+      return;
     }
-    
-    if (this.rirCountryCodeCandidates.isEmpty()) {
-      // Better only EU than nothing
-      for (final String countryCode : countryCodeCandidates) {
-        this.rirCountryCodeCandidates.add(countryCode);
-      }
+    if (this.instant == null) {
+      throw new IllegalStateException(
+          "Instant must be set before a call to addIplocation");
     }
+    if (numNotAfterInstant < 0
+        || numNotAfterInstant > sortedIplocationGeolocations.size()) {
+      throw new IndexOutOfBoundsException(
+          numNotAfterInstant + " of " + sortedIplocationGeolocations.size());
+    }
+
+    this.getIplocationGeolocations().addAll(sortedIplocationGeolocations);
+    this.nextIplocationIndex = numNotAfterInstant;
+  }
+  
+  /**
+   * Called by the {@link GeolocationCollector} once all RIR and IPlocation
+   * geolocations have been added, if there is a RIR entry for the IP address.
+   * <p>
+   * By default, this computes the country code, time zone, and consistency
+   * right away. Subclasses can override it to compute them later with
+   * {@link #computeCountryCodeAndTimeZone()} and {@link #computeConsistency()}
+   * (see {@link LazyGeolocations}).
+   * </p>
+   */
+  protected void finishCollection() {
+    this.computeCountryCodeAndTimeZone();
+    this.computeConsistency();
+  }
+
+  /**
+   * Sets the country code and time zone from the RIR and IPlocation
+   * geolocations.
+   */
+  protected void computeCountryCodeAndTimeZone() {
+    GeolocationCollector.setCountryAndTimeZone(this);
+  }
+
+  /**
+   * Sets the consistency of the RIR and IPlocation geolocations.
+   */
+  protected void computeConsistency() {
+    GeolocationCollector.setConsistency(this);
+  }
+  
+  public void setRirGeolocations(final Iterable<String> countryCodeCandidates) {
+    this.setRirCandidates(RirCandidates.forCountryCodes(countryCodeCandidates));
+  }
+  
+  /**
+   * Sets the RIR country code and time zone candidates to the ones of the
+   * given (shared) object, which are not copied.
+   */
+  public void setRirCandidates(final RirCandidates candidates) {
+    if (candidates == null) { throw new NullPointerException(); }
+    this.rirCandidates = candidates;
+    this.rirCountryCodeCandidates = candidates.getCountryCodes();
+    this.rirTimeZoneCandidates = candidates.getTimeZones();
   }
   
   @Override
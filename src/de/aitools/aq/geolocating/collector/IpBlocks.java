@@ -29,10 +29,29 @@ public abstract class IpBlocks<BLOCK extends IpBlock> {
     return output.toString();
   }
 
+  /**
+   * Gets all blocks in the order of their IPs.
+   */
+  protected List<BLOCK> getBlocks() {
+    return Collections.unmodifiableList(this.blocks);
+  }
+
   protected BLOCK getBlock(final long ip) {
     return this.getBlockByIndex(ip, this.getBlockIndex(ip));
   }
   
+  /**
+   * Checks whether all IPs from first to last (inclusive) are in the same
+   * block or all are in no block, so that {@link #getBlock(long)} gives the
+   * same for all of them.
+   */
+  protected boolean isWithinOneBlock(final long firstIp, final long lastIp) {
+    final int index = this.getBlockIndex(firstIp);
+    if (index != this.getBlockIndex(lastIp)) { return false; }
+    return (this.getBlockByIndex(firstIp, index) == null)
+        == (this.getBlockByIndex(lastIp, index) == null);
+  }
+  
   protected List<BLOCK> getExactBlocks(final long firstIp, final long lastIp) {
     final int firstBlockIndex =
         this.getExactBlocksFirstBlockIndex(firstIp, lastIp);
@@ -0,0 +1,70 @@
+package de.aitools.aq.geolocating.collector;
+
+/**
+ * {@link Geolocations} that compute their country code, time zone, and
+ * consistency only when the respective getter is first called.
+ * <p>
+ * A {@link GeolocationCollector} that creates objects of this class (e.g.,
+ * by {@link GeolocationCollector#createLazy(java.io.File, java.io.File)})
+ * only collects the RIR and IPlocation geolocations. So a decision tree that
+ * does not ask for, e.g., the consistency of some geolocations does not pay
+ * for computing it. The values are the same as the ones the collector sets
+ * for other {@link Geolocations}.
+ * </p><p>
+ * Like the geolocations, objects of this class are not meant to be used by
+ * several threads at the same time.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class LazyGeolocations extends Geolocations {
+  
+  private boolean countryCodeAndTimeZonePending;
+  
+  private boolean consistencyPending;
+  
+  public LazyGeolocations() {
+    this.countryCodeAndTimeZonePending = false;
+    this.consistencyPending = false;
+  }
+
+  @Override
+  public String getCountryCode() {
+    this.computePendingCountryCodeAndTimeZone();
+    return super.getCountryCode();
+  }
+
+  @Override
+  public String getTimeZone() {
+    this.computePendingCountryCodeAndTimeZone();
+    return super.getTimeZone();
+  }
+
+  @Override
+  public GeolocationConsistency getConsistency() {
+    if (this.consistencyPending) {
+      this.consistencyPending = false;
+      this.computeConsistency();
+    }
+    return super.getConsistency();
+  }
+  
+  /**
+   * Marks the values as to be computed on first access instead of computing
+   * them.
+   */
+  @Override
+  protected void finishCollection() {
+    this.countryCodeAndTimeZonePending = true;
+    this.consistencyPending = true;
+  }
+  
+  private void computePendingCountryCodeAndTimeZone() {
+    if (this.countryCodeAndTimeZonePending) {
+      this.countryCodeAndTimeZonePending = false;
+      this.computeCountryCodeAndTimeZone();
+    }
+  }
+
+}
@@ -0,0 +1,175 @@
+package de.aitools.aq.geolocating.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Input stream that reads another input stream on a separate thread.
+ * <p>
+ * The wrapped stream is read ahead in chunks into a bounded queue, so that
+ * expensive work done by the wrapped stream (like decompression) overlaps with
+ * the processing of the data by the consumer of this stream. An exception or
+ * error while reading the wrapped stream is thrown to the consumer once all
+ * chunks before it have been consumed.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class BackgroundInputStream extends InputStream {
+
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+  public static final int DEFAULT_MAX_CHUNKS = 16;
+
+  private static final byte[] END = new byte[0];
+
+  private final InputStream input;
+
+  private final BlockingQueue<byte[]> chunks;
+
+  private final Thread reader;
+
+  private volatile Throwable exception;
+
+  private byte[] chunk;
+
+  private int position;
+
+  private boolean closed;
+
+  /**
+   * Creates a new stream that reads given input in the background using
+   * default buffer sizes.
+   * @param input The stream to read in the background
+   * @param name Name of the background thread
+   */
+  public BackgroundInputStream(final InputStream input, final String name) {
+    this(input, name, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_CHUNKS);
+  }
+
+  /**
+   * Creates a new stream that reads given input in the background.
+   * @param input The stream to read in the background
+   * @param name Name of the background thread
+   * @param chunkSize Number of bytes to read at once
+   * @param maxChunks Maximum number of chunks that are read ahead
+   */
+  public BackgroundInputStream(final InputStream input, final String name,
+      final int chunkSize, final int maxChunks)
+  throws NullPointerException, IllegalArgumentException {
+    if (input == null) { throw new NullPointerException(); }
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("Chunk size: " + chunkSize);
+    }
+    this.input = input;
+    this.chunks = new ArrayBlockingQueue<>(maxChunks);
+    this.exception = null;
+    this.chunk = null;
+    this.position = 0;
+    this.closed = false;
+    this.reader = new Thread(() -> this.readAll(chunkSize), name);
+    this.reader.setDaemon(true);
+    this.reader.start();
+  }
+
+  private void readAll(final int chunkSize) {
+    try {
+      while (true) {
+        final byte[] chunk = new byte[chunkSize];
+        int filled = 0;
+        int read = 0;
+        while (filled < chunkSize
+            && (read = this.input.read(chunk, filled, chunkSize - filled)) >= 0) {
+          filled += read;
+        }
+        if (filled > 0) {
+          this.chunks.put(
+              filled == chunkSize ? chunk : Arrays.copyOf(chunk, filled));
+        }
+        if (read < 0) { break; }
+      }
+    } catch (final InterruptedException e) {
+      // Closed by the consumer
+      return;
+    } catch (final Throwable e) {
+      // Also errors, as the consumer would wait forever for the end otherwise
+      this.exception = e;
+    }
+
+    try {
+      this.chunks.put(END);
+    } catch (final InterruptedException e) {
+      // Closed by the consumer
+    }
+  }
+
+  /**
+   * Makes sure that a chunk with remaining bytes is available, returning false
+   * if the end of the stream has been reached.
+   */
+  private boolean nextChunk() throws IOException {
+    if (this.closed) { throw new IOException("Stream closed"); }
+    if (this.chunk == END) { return false; }
+    if (this.chunk != null && this.position < this.chunk.length) {
+      return true;
+    }
+
+    try {
+      this.chunk = this.chunks.take();
+    } catch (final InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    this.position = 0;
+    if (this.chunk == END) {
+      final Throwable exception = this.exception;
+      if (exception instanceof IOException) {
+        throw (IOException) exception;
+      } else if (exception instanceof RuntimeException) {
+        throw (RuntimeException) exception;
+      } else if (exception instanceof Error) {
+        throw (Error) exception;
+      } else if (exception != null) {
+        throw new IOException(exception);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!this.nextChunk()) { return -1; }
+    return this.chunk[this.position++] & 0xFF;
+  }
+
+  @Override
+  public int read(final byte[] buffer, final int offset, final int length)
+  throws IOException {
+    if (length == 0) { return 0; }
+    if (!this.nextChunk()) { return -1; }
+    final int read = Math.min(length, this.chunk.length - this.position);
+    System.arraycopy(this.chunk, this.position, buffer, offset, read);
+    this.position += read;
+    return read;
+  }
+
+  @Override
+  public int available() throws IOException {
+    if (this.closed || this.chunk == null || this.chunk == END) { return 0; }
+    return this.chunk.length - this.position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.closed) { return; }
+    this.closed = true;
+    this.reader.interrupt();
+    this.input.close();
+  }
+
+}
@@ -0,0 +1,84 @@
+package de.aitools.aq.geolocating.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Utility methods for reading files that may be compressed.
+ * <p>
+ * The compression is detected from the file name. Supported are gzip
+ * (<tt>.gz</tt>) and zip (<tt>.zip</tt>, only the first entry is read) files.
+ * Compressed files are decompressed in a {@link BackgroundInputStream}, so that
+ * decompression and parsing run on separate threads.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class CompressedFiles {
+
+  private static final String SUFFIX_GZIP = ".gz";
+
+  private static final String SUFFIX_ZIP = ".zip";
+
+  private static final String[] SUFFIXES_UNSUPPORTED = {
+    ".bz2", ".xz", ".Z", ".7z"
+  };
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private CompressedFiles() { }
+
+  /**
+   * Checks whether the file name indicates a compression that can not be read
+   * by {@link #open(File)}.
+   */
+  public static boolean isUnsupported(final File file) {
+    final String name = file.getName();
+    for (final String suffix : SUFFIXES_UNSUPPORTED) {
+      if (name.endsWith(suffix)) { return true; }
+    }
+    return false;
+  }
+
+  /**
+   * Opens the file for reading, decompressing it on a background thread if
+   * its name indicates a supported compression.
+   * @param file The file to read
+   * @return A stream of the uncompressed file content
+   * @throws IOException If the file can not be opened, is not a valid
+   * compressed file, or uses an unsupported compression (see
+   * {@link #isUnsupported(File)})
+   */
+  public static InputStream open(final File file)
+  throws IOException {
+    if (CompressedFiles.isUnsupported(file)) {
+      throw new IOException(
+          "Unsupported compression: " + file.getAbsolutePath());
+    }
+    final String name = file.getName();
+    final InputStream input = new FileInputStream(file);
+    try {
+      if (name.endsWith(SUFFIX_GZIP)) {
+        return new BackgroundInputStream(
+            new GZIPInputStream(input, BUFFER_SIZE), "gunzip " + name);
+      } else if (name.endsWith(SUFFIX_ZIP)) {
+        final ZipInputStream zipInput = new ZipInputStream(input);
+        if (zipInput.getNextEntry() == null) {
+          throw new IOException("Empty zip file: " + file);
+        }
+        return new BackgroundInputStream(zipInput, "unzip " + name);
+      } else {
+        return input;
+      }
+    } catch (final IOException | RuntimeException e) {
+      input.close();
+      throw e;
+    }
+  }
+
+}
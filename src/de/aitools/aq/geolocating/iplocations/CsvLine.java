@@ -0,0 +1,257 @@
+package de.aitools.aq.geolocating.iplocations;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A line of a CSV file in which all fields are in double quotes, tokenized at
+ * byte level.
+ * <p>
+ * Fields are separated by <tt>","</tt>; the quote at the start and the end of
+ * the line is removed. This is what IPlocation databases use. If the line
+ * does not start with a quote, fields are separated by commas instead.
+ * </p><p>
+ * The fields are kept as offsets into the bytes of the line, so that only the
+ * fields that are needed are converted, and numbers are parsed without
+ * creating strings. A line object can be reused for the next line, but is not
+ * thread-safe.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class CsvLine {
+
+  private static final byte QUOTE = '"';
+
+  private static final byte SEPARATOR = ',';
+
+  /**
+   * The maximum power of ten by which a long can be divided with a correctly
+   * rounded double result.
+   */
+  private static final int MAX_EXACT_POWER_OF_TEN = 22;
+
+  private static final double[] POWERS_OF_TEN =
+      new double[MAX_EXACT_POWER_OF_TEN + 1];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int p = 1; p < POWERS_OF_TEN.length; ++p) {
+      POWERS_OF_TEN[p] = POWERS_OF_TEN[p - 1] * 10;
+    }
+  }
+
+  private final Charset charset;
+
+  private byte[] bytes;
+
+  private int lineStart;
+
+  private int lineEnd;
+
+  private int numFields;
+
+  private int[] fieldStarts;
+
+  private int[] fieldEnds;
+
+  /**
+   * Creates a new line for files with the given character set, which has to
+   * encode the quote and comma as single bytes (like ASCII does).
+   */
+  public CsvLine(final Charset charset) {
+    if (charset == null) { throw new NullPointerException(); }
+    this.charset = charset;
+    this.bytes = null;
+    this.numFields = 0;
+    this.fieldStarts = new int[16];
+    this.fieldEnds = new int[16];
+  }
+
+  /**
+   * Sets this to the line that is the given range of bytes (without line
+   * break) and tokenizes it. The bytes are not copied.
+   * @return This line
+   */
+  public CsvLine set(final byte[] bytes, final int start, final int end) {
+    this.bytes = bytes;
+    this.lineStart = start;
+    this.lineEnd = end;
+    this.numFields = 0;
+
+    if (start < end && bytes[start] == QUOTE) {
+      final int contentEnd =
+          (end - 1 > start && bytes[end - 1] == QUOTE) ? end - 1 : end;
+      int fieldStart = start + 1;
+      for (int b = fieldStart; b < contentEnd - 2; ++b) {
+        if (bytes[b] == QUOTE && bytes[b + 1] == SEPARATOR
+            && bytes[b + 2] == QUOTE) {
+          this.addField(fieldStart, b);
+          fieldStart = b + 3;
+          b += 2;
+        }
+      }
+      this.addField(fieldStart, Math.max(fieldStart, contentEnd));
+    } else {
+      int fieldStart = start;
+      for (int b = start; b < end; ++b) {
+        if (bytes[b] == SEPARATOR) {
+          this.addField(fieldStart, b);
+          fieldStart = b + 1;
+        }
+      }
+      this.addField(fieldStart, end);
+    }
+    return this;
+  }
+
+  private void addField(final int start, final int end) {
+    if (this.numFields == this.fieldStarts.length) {
+      this.fieldStarts =
+          Arrays.copyOf(this.fieldStarts, this.fieldStarts.length * 2);
+      this.fieldEnds = Arrays.copyOf(this.fieldEnds, this.fieldEnds.length * 2);
+    }
+    this.fieldStarts[this.numFields] = start;
+    this.fieldEnds[this.numFields] = end;
+    ++this.numFields;
+  }
+
+  public int getNumFields() {
+    return this.numFields;
+  }
+
+  private void checkField(final int field)
+  throws IndexOutOfBoundsException {
+    if (field < 0 || field >= this.numFields) {
+      throw new IndexOutOfBoundsException(
+          "Field " + field + " of " + this.numFields + " in: " + this);
+    }
+  }
+
+  public boolean isEmpty(final int field)
+  throws IndexOutOfBoundsException {
+    this.checkField(field);
+    return this.fieldStarts[field] == this.fieldEnds[field];
+  }
+
+  /**
+   * Checks whether the field is the given string, which has to consist of
+   * characters that are encoded as single bytes (like ASCII).
+   */
+  public boolean equals(final int field, final String string)
+  throws IndexOutOfBoundsException {
+    this.checkField(field);
+    final int start = this.fieldStarts[field];
+    final int length = this.fieldEnds[field] - start;
+    if (length != string.length()) { return false; }
+    for (int c = 0; c < length; ++c) {
+      if (this.bytes[start + c] != string.charAt(c)) { return false; }
+    }
+    return true;
+  }
+
+  public String getString(final int field)
+  throws IndexOutOfBoundsException {
+    this.checkField(field);
+    final int start = this.fieldStarts[field];
+    return new String(this.bytes, start, this.fieldEnds[field] - start,
+        this.charset);
+  }
+
+  /**
+   * Parses the field as a decimal long (like {@link Long#parseLong(String)}).
+   */
+  public long getLong(final int field)
+  throws IndexOutOfBoundsException, NumberFormatException {
+    this.checkField(field);
+    int position = this.fieldStarts[field];
+    final int end = this.fieldEnds[field];
+    boolean negative = false;
+    if (position < end
+        && (this.bytes[position] == '-' || this.bytes[position] == '+')) {
+      negative = this.bytes[position] == '-';
+      ++position;
+    }
+    if (position == end || end - position > 18) {
+      // Empty or might overflow: let Java decide
+      return Long.parseLong(this.getString(field));
+    }
+    long value = 0;
+    for (; position < end; ++position) {
+      final int digit = this.bytes[position] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException(
+            "For input string: \"" + this.getString(field) + "\"");
+      }
+      value = value * 10 + digit;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Parses the field as a double (like {@link Double#parseDouble(String)}).
+   * <p>
+   * Plain decimal numbers with at most 15 digits are parsed directly, which is
+   * exact since both the digits and the power of ten are exactly
+   * representable as doubles. All other numbers are parsed by Java.
+   * </p>
+   */
+  public double getDouble(final int field)
+  throws IndexOutOfBoundsException, NumberFormatException {
+    this.checkField(field);
+    int position = this.fieldStarts[field];
+    final int end = this.fieldEnds[field];
+    boolean negative = false;
+    if (position < end
+        && (this.bytes[position] == '-' || this.bytes[position] == '+')) {
+      negative = this.bytes[position] == '-';
+      ++position;
+    }
+    long digits = 0;
+    boolean anyDigit = false;
+    int numDigits = 0;
+    int numFractionDigits = 0;
+    boolean fraction = false;
+    for (; position < end; ++position) {
+      final byte character = this.bytes[position];
+      if (character == '.' && !fraction) {
+        fraction = true;
+      } else if (character >= '0' && character <= '9') {
+        digits = digits * 10 + (character - '0');
+        anyDigit = true;
+        if (digits != 0) { ++numDigits; }
+        if (fraction) { ++numFractionDigits; }
+      } else {
+        break;
+      }
+    }
+    if (position != end || !anyDigit || numDigits > 15
+        || numFractionDigits > MAX_EXACT_POWER_OF_TEN) {
+      return Double.parseDouble(this.getString(field));
+    }
+    final double value = digits / POWERS_OF_TEN[numFractionDigits];
+    return negative ? -value : value;
+  }
+
+  /**
+   * Gets all fields as strings.
+   */
+  public String[] getStrings() {
+    final String[] strings = new String[this.numFields];
+    for (int f = 0; f < strings.length; ++f) {
+      strings[f] = this.getString(f);
+    }
+    return strings;
+  }
+
+  /**
+   * Gets the complete line.
+   */
+  @Override
+  public String toString() {
+    if (this.bytes == null) { return ""; }
+    return new String(this.bytes, this.lineStart,
+        this.lineEnd - this.lineStart, this.charset);
+  }
+
+}
@@ -0,0 +1,233 @@
+package de.aitools.aq.geolocating.iplocations;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import de.aitools.aq.geolocating.timezones.TimeZoneMap;
+import de.aitools.aq.geolocating.timezones.TimeZoneQuery;
+
+/**
+ * Reads IP2Location DB11 database files in the binary format of the vendor
+ * (BIN files) directly from memory-mapped files.
+ * <p>
+ * Files have to be named to match <tt>ip2location-db11(lite)?-(\\d){6}.bin</tt>
+ * where the six digits gives the year (4 digits) and month (2 digits). Example:
+ * <tt>ip2location-db11lite-201606.bin</tt>.
+ * </p><p>
+ * A BIN file starts with a header that gives the database type, the number of
+ * columns, and the number and position of the IPv4 rows (IPv6 rows are
+ * ignored). Each row consists of 4-byte little-endian columns: the first IP of
+ * the range, pointers to the strings of country, region, and city, and the
+ * latitude and longitude as floats. The range of a row ends before the first
+ * IP of the next row. The records are the same as the ones of
+ * {@link Ip2locationDb11Parser} for the CSV file of the same month, as the
+ * coordinates are rounded to the six decimals of the CSV files.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class Ip2locationDb11BinParser extends IplocationParser {
+
+  public static String FILE_NAME_FORMAT = "ip2location-db11(lite)?-(\\d){6}.bin";
+
+  public static final int DATABASE_TYPE = 11;
+
+  private static final int COLUMN_SIZE = 4;
+
+  private static final int COLUMN_COUNTRY = 1;
+
+  private static final int COLUMN_CITY = 3;
+
+  private static final int COLUMN_LATITUDE = 4;
+
+  private static final int COLUMN_LONGITUDE = 5;
+
+  private static final double COORDINATE_SCALE = 1e6;
+
+  private static final long MAX_IP = 0xFFFFFFFFL;
+
+  public Ip2locationDb11BinParser(final TimeZoneMap timeZoneMap) {
+    super(timeZoneMap, FILE_NAME_FORMAT);
+  }
+
+  @Override
+  public Instant getFileInstant(final File file)
+  throws IllegalArgumentException {
+    return this.getFileMonth(file);
+  }
+
+  /**
+   * Parses the file and passes its records to the consumer in the order of
+   * the file.
+   * <p>
+   * As there is no text to parse, the rows are read on the calling thread
+   * directly from the memory-mapped file.
+   * </p>
+   */
+  @Override
+  public void parse(final File file,
+      final Map<TimeZoneQuery, String> knownTimeZones,
+      final Consumer<Record> consumer)
+  throws IOException {
+    final Map<TimeZoneQuery, String> timeZones =
+        this.findTimeZones(file, knownTimeZones);
+    this.readRecords(file, record -> {
+      this.findTimeZone(record, timeZones);
+      if (record.timeZone == null) {
+        if (!record.countryCode.equals("AQ")) {
+          // We don't have time zones for Antarctica, so this is not an error
+          // that the record has no time zone
+          System.err.println("NO TIME ZONE: " + record);
+        }
+      } else {
+        consumer.accept(record);
+      }
+    });
+  }
+
+  @Override
+  protected Set<TimeZoneQuery> getTimeZoneQueries(final File file)
+  throws IOException {
+    final Set<TimeZoneQuery> queries = new HashSet<>();
+    this.readRecords(file, record -> queries.add(new TimeZoneQuery(
+        record.longitude, record.latitude, record.countryCode)));
+    return queries;
+  }
+
+  /**
+   * Creates the records (without time zone) for all IPv4 rows of the file
+   * that have a country.
+   */
+  private void readRecords(final File file, final Consumer<Record> consumer)
+  throws IOException {
+    final ByteBuffer buffer = Ip2locationDb11BinParser.map(file);
+    final int databaseType = buffer.get(0) & 0xFF;
+    if (databaseType != DATABASE_TYPE) {
+      throw new IOException("Not a DB" + DATABASE_TYPE + " file (but DB"
+          + databaseType + "): " + file);
+    }
+    final int numColumns = buffer.get(1) & 0xFF;
+    if (numColumns <= COLUMN_LONGITUDE) {
+      throw new IOException("Too few columns (" + numColumns + "): " + file);
+    }
+    final long numRows = buffer.getInt(5) & MAX_IP;
+    // Positions in the header start at 1
+    final long rowsStart = (buffer.getInt(9) & MAX_IP) - 1;
+    final int rowSize = numColumns * COLUMN_SIZE;
+
+    // Only few distinct countries, so the strings are reused
+    final Map<Integer, String> countryCodes = new HashMap<>();
+    for (long r = 0; r < numRows; ++r) {
+      final long rowStart = rowsStart + r * rowSize;
+      Ip2locationDb11BinParser.checkPosition(rowStart, buffer, file);
+      Ip2locationDb11BinParser.checkPosition(rowStart + rowSize, buffer, file);
+      final int row = (int) rowStart;
+      final long firstIp = buffer.getInt(row) & MAX_IP;
+      final int nextRow = row + rowSize;
+      final long lastIp = nextRow + COLUMN_SIZE <= buffer.limit()
+          ? (buffer.getInt(nextRow) & MAX_IP) - 1
+          : MAX_IP;
+      if (lastIp < firstIp) { continue; }
+
+      final int countryPointer =
+          buffer.getInt(row + COLUMN_COUNTRY * COLUMN_SIZE);
+      String countryCode = countryCodes.get(countryPointer);
+      if (countryCode == null) {
+        countryCode = Ip2locationDb11BinParser.getString(
+            buffer, countryPointer, file);
+        countryCodes.put(countryPointer, countryCode);
+      }
+      if (countryCode.isEmpty() || countryCode.equals("-")) { continue; }
+
+      final double latitude = Ip2locationDb11BinParser.round(
+          buffer.getFloat(row + COLUMN_LATITUDE * COLUMN_SIZE));
+      double longitude = Ip2locationDb11BinParser.round(
+          buffer.getFloat(row + COLUMN_LONGITUDE * COLUMN_SIZE));
+
+      // Bugfixing
+      if (longitude > 0 && Ip2locationDb11BinParser.isString(buffer,
+          buffer.getInt(row + COLUMN_CITY * COLUMN_SIZE), "Toyon")) {
+        longitude *= -1;
+      }
+
+      consumer.accept(
+          new Record(firstIp, lastIp, countryCode, latitude, longitude));
+    }
+  }
+
+  private static ByteBuffer map(final File file) throws IOException {
+    try (final FileChannel channel =
+        FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("File too large: " + file);
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+          .order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  /**
+   * Checks that the position is within the buffer or directly after it.
+   */
+  private static void checkPosition(
+      final long position, final ByteBuffer buffer, final File file)
+  throws IOException {
+    if (position < 0 || position > buffer.limit()) {
+      throw new IOException("Position " + position + " outside of " + file);
+    }
+  }
+
+  /**
+   * Gets the string at the position, which is stored as its length (one byte)
+   * followed by its characters.
+   */
+  private static String getString(
+      final ByteBuffer buffer, final int position, final File file)
+  throws IOException {
+    Ip2locationDb11BinParser.checkPosition(position + 1L, buffer, file);
+    final int length = buffer.get(position) & 0xFF;
+    Ip2locationDb11BinParser.checkPosition(
+        position + 1L + length, buffer, file);
+    final byte[] bytes = new byte[length];
+    for (int b = 0; b < length; ++b) {
+      bytes[b] = buffer.get(position + 1 + b);
+    }
+    return new String(bytes, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Checks whether the string at the position is the given one, which has to
+   * consist of characters that are encoded as single bytes (like ASCII).
+   */
+  private static boolean isString(
+      final ByteBuffer buffer, final int position, final String string) {
+    if (position < 0 || position + 1L + string.length() > buffer.limit()) {
+      return false;
+    }
+    if ((buffer.get(position) & 0xFF) != string.length()) { return false; }
+    for (int c = 0; c < string.length(); ++c) {
+      if (buffer.get(position + 1 + c) != string.charAt(c)) { return false; }
+    }
+    return true;
+  }
+
+  /**
+   * Rounds the coordinate to the six decimals of the CSV files.
+   */
+  private static double round(final float coordinate) {
+    return Math.round(coordinate * COORDINATE_SCALE) / COORDINATE_SCALE;
+  }
+
+}
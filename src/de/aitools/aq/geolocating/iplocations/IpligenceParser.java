@@ -3,12 +3,7 @@ package de.aitools.aq.geolocating.iplocations;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.time.Instant;
-import java.util.Calendar;
-import java.util.TimeZone;
 
 import de.aitools.aq.geolocating.timezones.TimeZoneMap;
 import de.aitools.aq.geolocating.timezones.TimeZones;
@@ -34,44 +29,27 @@ public class IpligenceParser extends IplocationCsvParser {
 
   @Override
   public Instant getFileInstant(final File file)
-  throws IllegalArgumentException{
-    if (!this.isForFile(file)) {
-      throw new IllegalArgumentException(file.getName());
-    }
-    final String filename = file.getName();
-    
-
-    final DateFormat dateFormat = new SimpleDateFormat("yyyyMM");
-    dateFormat.setCalendar(Calendar.getInstance(TimeZone.getTimeZone("UTC")));
-    final int dateBegin = filename.lastIndexOf('-') + 1;
-    final String dateString = filename.substring(dateBegin, dateBegin + 6);
-    try {
-      return dateFormat.parse(dateString).toInstant();
-    } catch (final ParseException e) {
-      throw new IllegalArgumentException(e);
-    }
+  throws IllegalArgumentException {
+    return this.getFileMonth(file);
   }
 
   @Override
-  protected Record parseWithoutTimeZone(final String[] fields)
-  throws IllegalArgumentException {
-    final String ipRangeStartString = fields[0];
-    final String ipRangeEndString = fields[1];
-    String countryCode = fields[2];
-    if (countryCode.isEmpty() || countryCode.equals("-")) { return null; }
+  protected Record parseWithoutTimeZone(final CsvLine fields)
+  throws IllegalArgumentException, IndexOutOfBoundsException {
+    if (fields.isEmpty(2) || fields.equals(2, "-")) { return null; }
+    String countryCode = fields.getString(2);
     
-    final long firstIp = Long.parseLong(ipRangeStartString);
-    final long lastIp = Long.parseLong(ipRangeEndString);
+    final long firstIp = fields.getLong(0);
+    final long lastIp = fields.getLong(1);
 
-    double latitude = Double.parseDouble(fields[12]);
-    double longitude = Double.parseDouble(fields[13]);
-    final String countryName = fields[3];
-    final String offset = fields[6];
-    final String stateCode = fields[7];
-    final String cityName = fields[10];
+    double latitude = fields.getDouble(12);
+    double longitude = fields.getDouble(13);
+    final String countryName = fields.getString(3);
+    final String stateCode = fields.getString(7);
+    final String cityName = fields.getString(10);
     if (longitude == 0 && latitude == 0) { return null; }
     if (cityName.equals("FPO") || cityName.equals("APO")) { return null; }
-    if (offset.isEmpty()) { return null; }
+    if (fields.isEmpty(6)) { return null; }
     
     // Bugfixing
     if (longitude >  0 && countryCode.equals("IM")) { longitude *= -1; }
@@ -95,9 +73,9 @@ public class IpligenceParser extends IplocationCsvParser {
   }
   
   @Override
-  protected void postProcessRecord(final Record record, final String[] fields) {
+  protected void postProcessRecord(final Record record, final CsvLine fields) {
     if (record.timeZone == null) {
-      final String stateCode = fields[7];
+      final String stateCode = fields.getString(7);
       if (stateCode != null && !stateCode.isEmpty()) {
         // IPligence has sometimes the state code as country code
         // E.g., the channel islands have all "GB" as country
@@ -161,7 +139,8 @@ public class IpligenceParser extends IplocationCsvParser {
               System.err.println("NO TIME ZONE FOR " + record.countryCode
                   + ", BUT FOR "
                   + TimeZones.forId(record.timeZone).getCountryCode() 
-                  + " (" + record.timeZone + "): " + String.join("|", fields));
+                  + " (" + record.timeZone + "): "
+                  + String.join("|", fields.getStrings()));
             }
             record.timeZone = null;
           }
@@ -1,126 +1,266 @@
 package de.aitools.aq.geolocating.iplocations;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.charset.Charset;
-import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import de.aitools.aq.geolocating.timezones.TimeZoneMap;
+import de.aitools.aq.geolocating.timezones.TimeZoneQuery;
 
-public abstract class IplocationCsvParser {
+/**
+ * Reads the CSV files of an IPlocation database.
+ * <p>
+ * Subclasses only create the record for each line (see
+ * {@link #parseWithoutTimeZone(CsvLine)}).
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public abstract class IplocationCsvParser extends IplocationParser {
   
-  protected final TimeZoneMap timeZoneMap;
+  public static final int MAX_BATCHES = 16;
   
-  protected final Pattern filenamePattern;
+  public static final int CHUNK_SIZE = 1 << 20;
   
   protected Charset charset;
   
   public IplocationCsvParser(
       final TimeZoneMap timeZoneMap, final String filenamePattern,
       final Charset charset) {
-    if (timeZoneMap == null) { throw new NullPointerException(); }
+    super(timeZoneMap, filenamePattern);
     if (charset == null) { throw new NullPointerException(); }
-    this.timeZoneMap = timeZoneMap;
-    this.filenamePattern = Pattern.compile(filenamePattern);
     this.charset = charset;
   }
   
-  public boolean isForFile(final File file) {
-    return this.filenamePattern.matcher(file.getName()).matches();
-  }
-  
-  public abstract Instant getFileInstant(final File file)
-  throws IllegalArgumentException;
-  
-  public List<Record> parse(final File file) throws IOException {
-    final List<Record> records = new ArrayList<>();
-    try (final BufferedReader reader =
-        new BufferedReader(new InputStreamReader(
-            new FileInputStream(file), this.charset))) {
-      String line = null;
-      while ((line = reader.readLine()) != null) {
-        final Record record = this.parse(line);
-        if (record != null) {
-          records.add(record);
+  /**
+   * Parses the file and passes its records to the consumer in the order of
+   * the file.
+   * <p>
+   * Reading the lines, creating the records (including finding their time
+   * zones), and consuming the records happen on three threads that pass
+   * chunks of about {@link #CHUNK_SIZE} bytes or the records of one chunk
+   * through queues of at most {@link #MAX_BATCHES} batches. So the stages
+   * overlap, and only a few batches are in memory at the same time. The
+   * consumer is called on the calling thread.
+   * </p>
+   */
+  @Override
+  public void parse(final File file,
+      final Map<TimeZoneQuery, String> knownTimeZones,
+      final Consumer<Record> consumer)
+  throws IOException {
+    final Map<TimeZoneQuery, String> timeZones =
+        this.findTimeZones(file, knownTimeZones);
+
+    final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(MAX_BATCHES);
+    final BlockingQueue<List<Record>> recordBatches =
+        new ArrayBlockingQueue<>(MAX_BATCHES);
+    final byte[] endOfChunks = new byte[0];
+    final List<Record> endOfRecords = new ArrayList<>(0);
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    final Thread reader = new Thread(() -> {
+      try {
+        try {
+          this.readChunks(file, chunks::put);
+        } catch (final InterruptedException e) {
+          throw e;
+        } catch (final Throwable e) {
+          // Also errors, as the other stages would wait forever otherwise
+          error.compareAndSet(null, e);
+        }
+        chunks.put(endOfChunks);
+      } catch (final InterruptedException e) {
+        // Stopped by the consumer
+      }
+    }, "reader for " + file.getName());
+
+    final Thread resolver = new Thread(() -> {
+      try {
+        try {
+          final CsvLine line = new CsvLine(this.charset);
+          byte[] chunk = null;
+          while ((chunk = chunks.take()) != endOfChunks) {
+            final List<Record> batch = new ArrayList<>();
+            IplocationCsvParser.forEachLine(chunk, line, fields -> {
+              final Record record = this.parse(fields, timeZones);
+              if (record != null) {
+                batch.add(record);
+              }
+            });
+            recordBatches.put(batch);
+          }
+        } catch (final InterruptedException e) {
+          throw e;
+        } catch (final Throwable e) {
+          error.compareAndSet(null, e);
+        }
+        recordBatches.put(endOfRecords);
+      } catch (final InterruptedException e) {
+        // Stopped by the consumer
+      }
+    }, "resolver for " + file.getName());
+
+    reader.setDaemon(true);
+    resolver.setDaemon(true);
+    reader.start();
+    resolver.start();
+    try {
+      List<Record> records = null;
+      while ((records = recordBatches.take()) != endOfRecords) {
+        for (final Record record : records) {
+          consumer.accept(record);
         }
       }
+    } catch (final InterruptedException e) {
+      throw new InterruptedIOException();
+    } finally {
+      reader.interrupt();
+      resolver.interrupt();
+    }
+
+    final Throwable cause = error.get();
+    if (cause instanceof IOException) {
+      throw (IOException) cause;
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    } else if (cause instanceof Error) {
+      throw (Error) cause;
+    } else if (cause != null) {
+      throw new IOException(cause);
     }
-    return records;
   }
   
-  protected Record parse(final String line) {
-    final String[] fields = line.split("\",\"");
-    fields[0] = fields[0].replace("\"", "");
-    fields[fields.length - 1] = fields[fields.length - 1].replace("\"", "");
-    
+  /**
+   * Gets the distinct queries that {@link #parse(CsvLine, Map)} makes to the
+   * time zone map for the records of the file (not counting the ones of
+   * {@link #postProcessRecord(Record, CsvLine)}).
+   */
+  @Override
+  protected Set<TimeZoneQuery> getTimeZoneQueries(final File file)
+  throws IOException {
+    final Set<TimeZoneQuery> queries = new HashSet<>();
+    final CsvLine line = new CsvLine(this.charset);
+    try {
+      this.readChunks(file, chunk -> {
+        IplocationCsvParser.forEachLine(chunk, line, fields -> {
+          final Record record = this.parseWithoutTimeZone(fields);
+          if (record != null) {
+            queries.add(new TimeZoneQuery(
+                record.longitude, record.latitude, record.countryCode));
+          }
+        });
+      });
+    } catch (final InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    return queries;
+  }
+  
+  /**
+   * Parses the line, taking the time zone from the given map if it contains
+   * the query for the record and asking the time zone map otherwise.
+   */
+  protected Record parse(
+      final CsvLine fields, final Map<TimeZoneQuery, String> timeZones) {
     final Record record = this.parseWithoutTimeZone(fields);
     if (record == null) { return null; }
 
-    try {
-      record.timeZone = this.timeZoneMap.findTimeZone(
-          record.longitude, record.latitude, record.countryCode);
-    } catch (final IOException e) {
-      throw new IllegalStateException(e);
-    }
+    this.findTimeZone(record, timeZones);
     this.postProcessRecord(record, fields);
     
     if (record.timeZone == null) {
       if (!record.countryCode.equals("AQ")) {
         // We don't have time zones for Antarctica, so this is not an error that
         // the record still has no time zone
-        System.err.println("NO TIME ZONE: " + line);
+        System.err.println("NO TIME ZONE: " + fields);
       }
       return null;
     }
     return record;
   }
   
-  protected abstract Record parseWithoutTimeZone(final String[] fields)
-  throws IllegalArgumentException;
-  
-  protected void postProcessRecord(final Record record, final String[] fields) {
-    // Do nothing by default
+  @FunctionalInterface
+  private interface ChunkConsumer {
+    void accept(final byte[] chunk) throws InterruptedException;
   }
   
-  public static class Record {
-    
-    public final long firstIp;
-    
-    public final long lastIp;
-    
-    public String countryCode;
-    
-    public String timeZone;
-    
-    public double latitude;
-    
-    public double longitude;
-    
-    public Record(
-        final long firstIp, final long lastIp,
-        final String countryCode,
-        final double latitude, final double longitude) {
-      this.firstIp = firstIp;
-      this.lastIp = lastIp;
-      this.countryCode = countryCode;
-      this.latitude = latitude;
-      this.longitude = longitude;
+  /**
+   * Reads the file in chunks of about {@link #CHUNK_SIZE} bytes that end
+   * after a line break (except for the last one).
+   */
+  private void readChunks(final File file, final ChunkConsumer consumer)
+  throws IOException, InterruptedException {
+    try (final InputStream input = new FileInputStream(file)) {
+      byte[] buffer = new byte[CHUNK_SIZE];
+      int filled = 0;
+      while (true) {
+        final int read = input.read(buffer, filled, buffer.length - filled);
+        if (read < 0) {
+          if (filled > 0) {
+            consumer.accept(Arrays.copyOf(buffer, filled));
+          }
+          return;
+        }
+        filled += read;
+
+        int chunkEnd = filled;
+        while (chunkEnd > 0 && buffer[chunkEnd - 1] != '\n') { --chunkEnd; }
+        if (chunkEnd == 0) {
+          if (filled == buffer.length) { // line longer than buffer
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+          }
+        } else if (filled == buffer.length) {
+          consumer.accept(Arrays.copyOf(buffer, chunkEnd));
+          System.arraycopy(buffer, chunkEnd, buffer, 0, filled - chunkEnd);
+          filled -= chunkEnd;
+        }
+      }
     }
-    
-    @Override
-    public String toString() {
-      return String.join("\t",
-          String.valueOf(this.firstIp), String.valueOf(this.lastIp),
-          this.countryCode,
-          String.valueOf(this.latitude), String.valueOf(this.longitude));
+  }
+  
+  /**
+   * Calls the consumer for each non-empty line of the chunk, reusing the
+   * given line object.
+   */
+  private static void forEachLine(final byte[] chunk, final CsvLine line,
+      final Consumer<CsvLine> consumer) {
+    int lineStart = 0;
+    while (lineStart < chunk.length) {
+      int lineEnd = lineStart;
+      while (lineEnd < chunk.length && chunk[lineEnd] != '\n') { ++lineEnd; }
+      final int next = lineEnd + 1;
+      if (lineEnd > lineStart && chunk[lineEnd - 1] == '\r') { --lineEnd; }
+      if (lineEnd > lineStart) {
+        consumer.accept(line.set(chunk, lineStart, lineEnd));
+      }
+      lineStart = next;
     }
-    
+  }
+  
+  /**
+   * Creates the record for a line without its time zone, or returns null if
+   * the line should be skipped.
+   */
+  protected abstract Record parseWithoutTimeZone(final CsvLine fields)
+  throws IllegalArgumentException, IndexOutOfBoundsException;
+  
+  protected void postProcessRecord(final Record record, final CsvLine fields) {
+    // Do nothing by default
   }
 
 }
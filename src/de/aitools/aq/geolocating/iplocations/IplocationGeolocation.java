@@ -9,6 +9,7 @@ import javax.xml.bind.annotation.XmlType;
 import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 
 import de.aitools.aq.geolocating.jaxb.XmlInstantAdapter;
+import de.aitools.aq.geolocating.timezones.TimeZones;
 
 @XmlAccessorType(XmlAccessType.NONE)
 @XmlType(name = "iplocationGeolocalisation", propOrder = {
@@ -24,11 +25,14 @@ public class IplocationGeolocation {
   
   private String timeZone;
   
+  private int timeZoneIndex;
+  
   public IplocationGeolocation() {
     this.source = null;
     this.sourceTime = null;
     this.countryCode = null;
     this.timeZone = null;
+    this.timeZoneIndex = -1;
   }
 
   @XmlAttribute(required = true)
@@ -52,6 +56,21 @@ public class IplocationGeolocation {
     return this.timeZone;
   }
   
+  /**
+   * Gets the index of the country code (see
+   * {@link TimeZones#getCountryIndex(String)}).
+   */
+  public int getCountryIndex() {
+    return TimeZones.getCountryIndex(this.countryCode);
+  }
+  
+  /**
+   * Gets the index of the time zone (see {@link TimeZones#getIndex(String)}).
+   */
+  public int getTimeZoneIndex() {
+    return this.timeZoneIndex;
+  }
+  
   public void setSource(final String source) {
     this.source = source;
   }
@@ -65,7 +84,16 @@ public class IplocationGeolocation {
   }
   
   public void setTimeZone(final String timeZone) {
+    this.setTimeZone(timeZone, TimeZones.getIndex(timeZone));
+  }
+  
+  /**
+   * Sets the time zone and its index (see {@link TimeZones#getIndex(String)})
+   * if the index is already known.
+   */
+  void setTimeZone(final String timeZone, final int timeZoneIndex) {
     this.timeZone = timeZone;
+    this.timeZoneIndex = timeZoneIndex;
   }
 
 }
@@ -1,13 +1,22 @@
 package de.aitools.aq.geolocating.iplocations;
 
 import de.aitools.aq.geolocating.collector.IpBlock;
+import de.aitools.aq.geolocating.timezones.TimeZones;
 
 public class IplocationIpBlock extends IpBlock {
   
+  private static final int UNKNOWN_INDEX = -2;
+  
   private String countryCode;
 
   private String timeZone;
   
+  /**
+   * The index of the time zone (see {@link TimeZones#getIndex(String)}), or
+   * {@link #UNKNOWN_INDEX} if it was not needed yet.
+   */
+  private int timeZoneIndex;
+  
   private double latitude;
   
   private double longitude;
@@ -22,6 +31,7 @@ public class IplocationIpBlock extends IpBlock {
     super(firstIp, lastIp);
     this.countryCode = countryCode;
     this.timeZone = timeZone;
+    this.timeZoneIndex = UNKNOWN_INDEX;
     this.latitude = latitude;
     this.longitude = longitude;
   }
@@ -34,6 +44,19 @@ public class IplocationIpBlock extends IpBlock {
     return this.timeZone;
   }
   
+  /**
+   * Gets the index of the time zone (see {@link TimeZones#getIndex(String)}),
+   * which is looked up only once for each block.
+   */
+  public int getTimeZoneIndex() {
+    int timeZoneIndex = this.timeZoneIndex;
+    if (timeZoneIndex == UNKNOWN_INDEX) {
+      timeZoneIndex = TimeZones.getIndex(this.timeZone);
+      this.timeZoneIndex = timeZoneIndex;
+    }
+    return timeZoneIndex;
+  }
+  
   public double getLatitude() {
     return this.latitude;
   }
@@ -48,6 +71,7 @@ public class IplocationIpBlock extends IpBlock {
   
   public void setTimeZone(final String timeZone) {
     this.timeZone = timeZone;
+    this.timeZoneIndex = UNKNOWN_INDEX;
   }
   
   public void setLatitude(final double latitude) {
@@ -86,7 +110,7 @@ public class IplocationIpBlock extends IpBlock {
         new IplocationGeolocation();
     geolocation.setSource(blocks.getName());
     geolocation.setSourceTime(blocks.getTime());
-    geolocation.setTimeZone(this.timeZone);
+    geolocation.setTimeZone(this.timeZone, this.getTimeZoneIndex());
     geolocation.setCountryCode(this.countryCode);
     return geolocation;
   }
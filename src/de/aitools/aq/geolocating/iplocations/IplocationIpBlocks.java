@@ -6,20 +6,36 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import de.aitools.aq.geolocating.Geolocator;
 import de.aitools.aq.geolocating.collector.GeolocationCollector;
 import de.aitools.aq.geolocating.collector.IpBlocks;
-import de.aitools.aq.geolocating.iplocations.IplocationCsvParser.Record;
 import de.aitools.aq.geolocating.timezones.CachedTimeZoneMap;
+import de.aitools.aq.geolocating.timezones.TimeZoneCache;
 import de.aitools.aq.geolocating.timezones.TimeZoneMap;
+import de.aitools.aq.geolocating.timezones.TimeZoneMapPool;
+import de.aitools.aq.geolocating.timezones.TimeZoneQuery;
 
 public class IplocationIpBlocks extends IpBlocks<IplocationIpBlock>
 implements Comparable<IplocationIpBlocks> {
@@ -27,24 +43,45 @@ implements Comparable<IplocationIpBlocks> {
   private final Instant time;
   
   private final String name;
+
+  /**
+   * The {@link TimeZoneCache#getDataChecksum()} of the time zone data with
+   * which the time zones of the blocks were found, or -1 if it is not known.
+   */
+  private final long timeZoneDataChecksum;
   
   public IplocationIpBlocks(final Instant time, final String name) {
+    this(time, name, -1);
+  }
+  
+  /**
+   * Creates empty blocks for the time zones found with the time zone data of
+   * given checksum (see {@link TimeZoneCache#getDataChecksum()}), or -1 if it
+   * is not known.
+   */
+  public IplocationIpBlocks(final Instant time, final String name,
+      final long timeZoneDataChecksum) {
     if (time == null) { throw new NullPointerException(); }
     if (name == null) { throw new NullPointerException(); }
     this.time = time;
     this.name = name;
+    this.timeZoneDataChecksum = timeZoneDataChecksum;
   }
   
+  /**
+   * Deserializes all files in the directory (or the single file), sorted by
+   * their time (and by their name for the same time).
+   */
   public static List<IplocationIpBlocks> deserializeAll(final File file)
   throws IOException {
-    final List<IplocationIpBlocks> blockss = new ArrayList<>();
-    if (file.isDirectory()) {
-      for (final File child : file.listFiles()) {
-        blockss.addAll(IplocationIpBlocks.deserializeAll(child));
-      }
-    } else {
-      blockss.add(IplocationIpBlocks.deserialize(file));
+    final List<File> files = new ArrayList<>();
+    IplocationIpBlocks.collectFiles(file, files);
+    final List<IplocationIpBlocks> blockss = new ArrayList<>(files.size());
+    for (final File child : files) {
+      blockss.add(IplocationIpBlocks.deserialize(child));
     }
+    blockss.sort(Comparator.comparing(IplocationIpBlocks::getTime)
+        .thenComparing(IplocationIpBlocks::getName));
     return blockss;
   }
   
@@ -62,7 +99,10 @@ implements Comparable<IplocationIpBlocks> {
     final String header = reader.readLine();
     if (header == null) { throw new IllegalArgumentException(); }
     final String[] parts = header.split("\t");
-    if (parts.length != 3) { throw new IllegalArgumentException(header); }
+    // Files written before the time zone data checksum was added have 3 parts
+    if (parts.length != 3 && parts.length != 4) {
+      throw new IllegalArgumentException(header);
+    }
     final String className = parts[0];
     if (!IplocationIpBlocks.class.getName().equals(className)) {
       throw new IllegalArgumentException(
@@ -71,8 +111,11 @@ implements Comparable<IplocationIpBlocks> {
 
     final String name = parts[1];
     final Instant time = Instant.ofEpochMilli(Long.parseLong(parts[2]));
+    final long timeZoneDataChecksum =
+        parts.length == 4 ? Long.parseLong(parts[3]) : -1;
     
-    final IplocationIpBlocks blocks = new IplocationIpBlocks(time, name);
+    final IplocationIpBlocks blocks =
+        new IplocationIpBlocks(time, name, timeZoneDataChecksum);
     blocks.deserializeBlocks(reader);
     
     return blocks;
@@ -86,6 +129,15 @@ implements Comparable<IplocationIpBlocks> {
     return this.time;
   }
 
+  /**
+   * Gets the {@link TimeZoneCache#getDataChecksum()} of the time zone data
+   * with which the time zones of the blocks were found, or -1 if it is not
+   * known.
+   */
+  public long getTimeZoneDataChecksum() {
+    return this.timeZoneDataChecksum;
+  }
+
   @Override
   public IplocationIpBlock getBlock(final long ip) {
     return super.getBlock(ip);
@@ -97,6 +149,34 @@ implements Comparable<IplocationIpBlocks> {
     return block.toGeolocation(this);
   }
   
+  /**
+   * Gets the time zone of each distinct location (coordinates and country) of
+   * the blocks.
+   * <p>
+   * As the blocks were created by an {@link IplocationParser}, this is what
+   * the time zone map answered for these locations, and thus can be used to
+   * parse the next file of the same database with
+   * {@link IplocationParser#parse(File, Map, Consumer)}. This only holds if
+   * the blocks were parsed with the same time zone data (see
+   * {@link #getTimeZoneDataChecksum()}).
+   * </p><p>
+   * A location can also belong to a block for which the parser had to correct
+   * the country code. Its time zone is then what the time zone map answered
+   * without a country, which is the same as with the corrected country.
+   * </p>
+   */
+  public Map<TimeZoneQuery, String> getTimeZones() {
+    final Map<TimeZoneQuery, String> timeZones = new HashMap<>();
+    for (final IplocationIpBlock block : this.getBlocks()) {
+      if (block.getTimeZone() != null && block.getCountryCode() != null) {
+        timeZones.put(new TimeZoneQuery(
+            block.getLongitude(), block.getLatitude(), block.getCountryCode()),
+            block.getTimeZone());
+      }
+    }
+    return timeZones;
+  }
+  
   @Override
   public int compareTo(final IplocationIpBlocks o) {
     return this.getTime().compareTo(o.getTime());
@@ -108,6 +188,10 @@ implements Comparable<IplocationIpBlocks> {
     writer.write(this.name);
     writer.write('\t');
     writer.write(String.valueOf(this.getTime().toEpochMilli()));
+    if (this.timeZoneDataChecksum >= 0) {
+      writer.write('\t');
+      writer.write(String.valueOf(this.timeZoneDataChecksum));
+    }
     writer.write('\n');
     
     this.serializeBlocks(writer);
@@ -154,7 +238,7 @@ implements Comparable<IplocationIpBlocks> {
   }
 
   public static Stream<IplocationIpBlocks> parseAll(
-      final File file, final List<IplocationCsvParser> parsers)
+      final File file, final List<IplocationParser> parsers)
   throws ParseException, IOException {
     
     if (file.isDirectory()) {
@@ -166,75 +250,327 @@ implements Comparable<IplocationIpBlocks> {
         }
       });
     } else {
-      final List<IplocationIpBlocks> blockss = new ArrayList<>(1);
-      for (final IplocationCsvParser parser : parsers) {
-        if (parser.isForFile(file)) {
-          System.out.println("Parsing " + file);
-          final IplocationIpBlocks blocks = new IplocationIpBlocks(
-              parser.getFileInstant(file), file.getName());
-          for (final Record record : parser.parse(file)) {
-            for (final IplocationIpBlock block
-                : blocks.getExactBlocks(record.firstIp, record.lastIp)) {
-              block.setCountryCode(record.countryCode);
-              block.setTimeZone(record.timeZone);
-              block.setLatitude(record.latitude);
-              block.setLongitude(record.longitude);
+      final IplocationIpBlocks blocks =
+          IplocationIpBlocks.parse(file, parsers);
+      if (blocks == null) {
+        return Stream.empty();
+      } else {
+        return Stream.of(blocks);
+      }
+    }
+  }
+
+  /**
+   * Parses all IPlocation CSV files in the directory (or the single file) on
+   * multiple threads.
+   * <p>
+   * Each thread gets its own parsers from the factory, so the parsers (and
+   * their {@link TimeZoneMap}s) do not need to be thread-safe. Each parsed
+   * file is passed to the consumer by the thread that parsed it as soon as it
+   * is complete. Since a thread only starts parsing the next file once the
+   * consumer returned, at most <tt>numThreads</tt> parsed files are in memory
+   * at the same time (unless the consumer keeps them).
+   * </p>
+   * @param file The directory or file to parse
+   * @param parsersFactory Creates the parsers for one thread
+   * @param numThreads The number of files to parse in parallel
+   * @param consumer Receives the parsed files; has to be thread-safe
+   * @throws IOException If an error occurred on reading a file
+   */
+  public static void parseAll(
+      final File file,
+      final Supplier<List<IplocationParser>> parsersFactory,
+      final int numThreads,
+      final Consumer<IplocationIpBlocks> consumer)
+  throws IOException {
+    IplocationIpBlocks.parseAll(
+        file, parsersFactory, numThreads, null, consumer);
+  }
+
+  /**
+   * Parses all IPlocation CSV files in the directory (or the single file) on
+   * multiple threads like {@link #parseAll(File, Supplier, int, Consumer)},
+   * but reuses the time zones of previously parsed files.
+   * <p>
+   * For each file, the latest previously parsed file of the same database
+   * that is from before the file is deserialized and passed to
+   * {@link #parse(File, List, IplocationIpBlocks)}, so that only locations
+   * that are new in the file are looked up in the time zone map. The
+   * previously parsed files are listed before parsing starts, so the
+   * directory can also be the one to which the consumer writes the parsed
+   * files (as long as it replaces them atomically).
+   * </p>
+   * @param previous The directory (or single file) of previously parsed files
+   * with the names of the CSV files they were parsed from, or null to not
+   * reuse time zones
+   */
+  public static void parseAll(
+      final File file,
+      final Supplier<List<IplocationParser>> parsersFactory,
+      final int numThreads,
+      final File previous,
+      final Consumer<IplocationIpBlocks> consumer)
+  throws IOException {
+    if (numThreads <= 0) {
+      throw new IllegalArgumentException("Number of threads: " + numThreads);
+    }
+    final List<File> files = new ArrayList<>();
+    IplocationIpBlocks.collectFiles(file, files);
+    final List<File> previousFiles = new ArrayList<>();
+    if (previous != null && previous.exists()) {
+      IplocationIpBlocks.collectFiles(previous, previousFiles);
+    }
+
+    final ThreadLocal<List<IplocationParser>> parsers =
+        ThreadLocal.withInitial(parsersFactory);
+    final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      final List<Future<?>> futures = new ArrayList<>(files.size());
+      for (final File child : files) {
+        futures.add(executor.submit(() -> {
+          final File previousFile = IplocationIpBlocks.getPreviousFile(
+              child, previousFiles, parsers.get());
+          IplocationIpBlocks reference = null;
+          if (previousFile != null) {
+            System.out.println("Reusing " + previousFile + " for " + child);
+            reference = IplocationIpBlocks.deserialize(previousFile);
+          }
+          final IplocationIpBlocks blocks =
+              IplocationIpBlocks.parse(child, parsers.get(), reference);
+          if (blocks != null) {
+            consumer.accept(blocks);
+          }
+          return null;
+        }));
+      }
+      for (final Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (final ExecutionException e) {
+          final Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else {
+            throw new RuntimeException(cause);
+          }
+        } catch (final InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Gets the latest of the candidates that is for the same parser as the file
+   * and from before it, or null if there is no such candidate.
+   */
+  private static File getPreviousFile(final File file,
+      final List<File> candidates, final List<IplocationParser> parsers) {
+    for (final IplocationParser parser : parsers) {
+      if (parser.isForFile(file)) {
+        final Instant time = parser.getFileInstant(file);
+        File previousFile = null;
+        Instant previousTime = null;
+        for (final File candidate : candidates) {
+          if (parser.isForFile(candidate)) {
+            final Instant candidateTime = parser.getFileInstant(candidate);
+            if (candidateTime.isBefore(time) && (previousTime == null
+                || candidateTime.isAfter(previousTime))) {
+              previousFile = candidate;
+              previousTime = candidateTime;
             }
           }
-          blockss.add(blocks);
-          break;
         }
+        return previousFile;
+      }
+    }
+    return null;
+  }
+
+  private static void collectFiles(final File file, final List<File> files) {
+    if (file.isDirectory()) {
+      for (final File child : file.listFiles()) {
+        IplocationIpBlocks.collectFiles(child, files);
+      }
+    } else {
+      files.add(file);
+    }
+  }
+
+  /**
+   * Parses the file with the first parser that is for the file, or returns
+   * null if there is no such parser.
+   */
+  public static IplocationIpBlocks parse(
+      final File file, final List<IplocationParser> parsers)
+  throws IOException {
+    return IplocationIpBlocks.parse(file, parsers, null);
+  }
+
+  /**
+   * Parses the file with the first parser that is for the file, or returns
+   * null if there is no such parser. The time zones of locations that are
+   * also in the reference are taken from there (see {@link #getTimeZones()}),
+   * unless the reference was parsed with other (or unknown) time zone data.
+   * @param reference The parsed previous file of the same database, or null
+   */
+  public static IplocationIpBlocks parse(
+      final File file, final List<IplocationParser> parsers,
+      final IplocationIpBlocks reference)
+  throws IOException {
+    for (final IplocationParser parser : parsers) {
+      if (parser.isForFile(file)) {
+        System.out.println("Parsing " + file);
+        final long timeZoneDataChecksum = TimeZoneCache.getDataChecksum();
+        final IplocationIpBlocks blocks = new IplocationIpBlocks(
+            parser.getFileInstant(file), file.getName(), timeZoneDataChecksum);
+        Map<TimeZoneQuery, String> knownTimeZones = Collections.emptyMap();
+        if (reference != null) {
+          if (reference.getTimeZoneDataChecksum() == timeZoneDataChecksum) {
+            knownTimeZones = reference.getTimeZones();
+          } else {
+            System.err.println("IGNORING " + reference.getName()
+                + " for reusing time zones, as it was parsed with other"
+                + " time zone data");
+          }
+        }
+        parser.parse(file, knownTimeZones, record -> {
+          for (final IplocationIpBlock block
+              : blocks.getExactBlocks(record.firstIp, record.lastIp)) {
+            block.setCountryCode(record.countryCode);
+            block.setTimeZone(record.timeZone);
+            block.setLatitude(record.latitude);
+            block.setLongitude(record.longitude);
+          }
+        });
+        return blocks;
       }
-      return blockss.stream();
     }
+    return null;
+  }
+
+  /**
+   * Creates the parsers for all supported IPlocation formats that use the
+   * given time zone map.
+   */
+  public static List<IplocationParser> createParsers(
+      final TimeZoneMap timeZoneMap) {
+    final List<IplocationParser> parsers = new ArrayList<>();
+    parsers.add(new IpligenceParser(timeZoneMap));
+    parsers.add(new Ip2locationDb11Parser(timeZoneMap));
+    parsers.add(new Ip2locationDb11BinParser(timeZoneMap));
+    parsers.add(new MaxmindCityParser(timeZoneMap));
+    return parsers;
   }
 
   /**
-   * Parses all IPlocation CSV files in the input directory, processes them for
+   * Parses all IPlocation files in the input directory, processes them for
    * usage within a {@link GeolocationCollector} (for example by
    * {@link Geolocator#main(String[])}), and writes the result to an output
    * directory. 
-   * @param args Input directory and output directory.
+   * @param args Input directory, output directory, and optionally the number
+   * of files to parse in parallel, a time zone cache file, and a directory of
+   * previously parsed files.
    */
   public static void main(final String[] args)
   throws ParseException, IOException {
-    if (args.length != 2) {
+    if (args.length < 2 || args.length > 5) {
       System.err.println("Synopsis:");
       System.err.println("  Preprocesses all IPlocation CSV files in a directory.");
       System.err.println("Usage:");
-      System.err.println("   <input> <output>");
+      System.err.println("   <input> <output> [<threads> [<cache> [<previous>]]]");
       System.err.println("Where:");
       System.err.println("  input");
-      System.err.println("    Is the directory that contains the CSV files.");
-      System.err.println("    The CSV format is detected based on the file name.");
-      System.err.println("    Currently supported CSV formats with file name syntax:");
+      System.err.println("    Is the directory that contains the database files.");
+      System.err.println("    The format is detected based on the file name.");
+      System.err.println("    Currently supported formats with file name syntax:");
       System.err.println("      - IPligence: " + IpligenceParser.FILE_NAME_FORMAT);
       System.err.println("      - IP2Location DB11: " + Ip2locationDb11Parser.FILE_NAME_FORMAT);
+      System.err.println("      - IP2Location DB11 (BIN): " + Ip2locationDb11BinParser.FILE_NAME_FORMAT);
+      System.err.println("      - MaxMind GeoIP2/GeoLite2 City: " + MaxmindCityParser.FILE_NAME_FORMAT);
       System.err.println("    Where the six digits gives the year (4 digits) and");
       System.err.println("    month (2 digits).");
       System.err.println("  output");
       System.err.println("    Is the directory to which the processed files will");
       System.err.println("    be written (then to be used by");
       System.err.println("    " + Geolocator.class.getName() + ")");
+      System.err.println("  threads");
+      System.err.println("    Is the number of files that are parsed in parallel");
+      System.err.println("    (default: number of processors). Each file that is");
+      System.err.println("    parsed needs about the memory of one parsed file.");
+      System.err.println("  cache");
+      System.err.println("    Is a file in which the found time zones are stored");
+      System.err.println("    for later runs (should not be in the output");
+      System.err.println("    directory). It is ignored if it was written for");
+      System.err.println("    other time zone data.");
+      System.err.println("  previous");
+      System.err.println("    Is a directory of files that were parsed before");
+      System.err.println("    (e.g., the output directory). For each CSV file,");
+      System.err.println("    the time zones of the latest earlier parsed file of");
+      System.err.println("    the same format are reused, so only new locations");
+      System.err.println("    are looked up. Files parsed with other time zone");
+      System.err.println("    data are ignored.");
       System.exit(1);
     }
     final File inputOriginal = new File(args[0]);
     final File outputParsed = new File(args[1]);
-    final TimeZoneMap timeZoneMap = new CachedTimeZoneMap();
-    final List<IplocationCsvParser> parsers = new ArrayList<>();
-    parsers.add(new IpligenceParser(timeZoneMap));
-    parsers.add(new Ip2locationDb11Parser(timeZoneMap));
+    final int numThreads = args.length >= 3
+        ? Integer.parseInt(args[2])
+        : Runtime.getRuntime().availableProcessors();
+    final File timeZoneCacheFile = args.length >= 4 ? new File(args[3]) : null;
+    final File previousParsed = args.length == 5 ? new File(args[4]) : null;
     
     outputParsed.mkdirs();
-    IplocationIpBlocks.parseAll(inputOriginal, parsers).forEach(blockss -> {
-      System.out.println("Serializing: " + blockss.getName());
-      try (final BufferedWriter writer = new BufferedWriter(new FileWriter(
-          new File(outputParsed, blockss.getName())))) {
-        blockss.serialize(writer);
-      } catch (final IOException e) {
-        throw new RuntimeException(e);
-      }
-    });
+    final TimeZoneCache timeZoneCache = new TimeZoneCache();
+    if (timeZoneCacheFile != null) {
+      System.out.println("Read time zones: "
+          + timeZoneCache.read(
+              timeZoneCacheFile, TimeZoneMap.DEFAULT_TOLERANCE));
+    }
+    try (final TimeZoneMapPool timeZoneMapPool = new TimeZoneMapPool(
+        Runtime.getRuntime().availableProcessors(),
+        TimeZoneMap.DEFAULT_TOLERANCE, timeZoneCache)) {
+      IplocationIpBlocks.parseAll(inputOriginal, () -> {
+        try {
+          final List<IplocationParser> parsers =
+              IplocationIpBlocks.createParsers(new CachedTimeZoneMap(
+                  TimeZoneMap.DEFAULT_TOLERANCE, timeZoneCache));
+          for (final IplocationParser parser : parsers) {
+            parser.setTimeZoneMapPool(timeZoneMapPool);
+          }
+          return parsers;
+        } catch (final IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }, numThreads, previousParsed, blockss -> {
+        System.out.println("Serializing: " + blockss.getName());
+        // Replacing the file only when complete, as it might be read as a
+        // previously parsed file by another thread
+        final File output = new File(outputParsed, blockss.getName());
+        final File partialOutput =
+            new File(outputParsed, "." + blockss.getName() + ".part");
+        try {
+          try (final BufferedWriter writer =
+              new BufferedWriter(new FileWriter(partialOutput))) {
+            blockss.serialize(writer);
+          }
+          Files.move(partialOutput.toPath(), output.toPath(),
+              StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+          partialOutput.delete();
+          throw new UncheckedIOException(e);
+        }
+      });
+    }
+    System.out.println("Time zone cache: " + timeZoneCache);
+    if (timeZoneCacheFile != null) {
+      timeZoneCache.write(timeZoneCacheFile, TimeZoneMap.DEFAULT_TOLERANCE);
+    }
   }
 
 }
@@ -0,0 +1,211 @@
+package de.aitools.aq.geolocating.iplocations;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import de.aitools.aq.geolocating.timezones.TimeZoneMap;
+import de.aitools.aq.geolocating.timezones.TimeZoneMapPool;
+import de.aitools.aq.geolocating.timezones.TimeZoneQuery;
+
+/**
+ * Reads the files of an IPlocation database into {@link Record}s with a time
+ * zone found by a {@link TimeZoneMap}.
+ * <p>
+ * Databases that come as CSV files extend {@link IplocationCsvParser}, which
+ * implements the reading of the file and only asks for the record of each
+ * line. Other formats implement {@link #parse(File, Map, Consumer)} and
+ * {@link #getTimeZoneQueries(File)} directly.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public abstract class IplocationParser {
+  
+  protected final TimeZoneMap timeZoneMap;
+  
+  protected final Pattern filenamePattern;
+  
+  protected TimeZoneMapPool timeZoneMapPool;
+  
+  public IplocationParser(
+      final TimeZoneMap timeZoneMap, final String filenamePattern) {
+    if (timeZoneMap == null) { throw new NullPointerException(); }
+    this.timeZoneMap = timeZoneMap;
+    this.filenamePattern = Pattern.compile(filenamePattern);
+    this.timeZoneMapPool = null;
+  }
+  
+  public boolean isForFile(final File file) {
+    return this.filenamePattern.matcher(file.getName()).matches();
+  }
+  
+  public abstract Instant getFileInstant(final File file)
+  throws IllegalArgumentException;
+  
+  /**
+   * Gets the instant of a file of this parser whose name ends with
+   * <tt>-yyyyMM</tt> and an extension, which is the start of that month in
+   * UTC.
+   */
+  protected Instant getFileMonth(final File file)
+  throws IllegalArgumentException {
+    if (!this.isForFile(file)) {
+      throw new IllegalArgumentException(file.getName());
+    }
+    final String filename = file.getName();
+
+    final DateFormat dateFormat = new SimpleDateFormat("yyyyMM");
+    dateFormat.setCalendar(Calendar.getInstance(TimeZone.getTimeZone("UTC")));
+    final int dateBegin = filename.lastIndexOf('-') + 1;
+    final String dateString = filename.substring(dateBegin, dateBegin + 6);
+    try {
+      return dateFormat.parse(dateString).toInstant();
+    } catch (final ParseException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+  
+  /**
+   * Sets a pool that is used to find the time zones of all records of a file
+   * in parallel before the records are created by {@link #parse(File)}, or
+   * null to find them one after another while parsing.
+   * <p>
+   * The maps of the pool have to use the same tolerance as the time zone map
+   * of this parser for the results to be the same.
+   * </p>
+   */
+  public void setTimeZoneMapPool(final TimeZoneMapPool timeZoneMapPool) {
+    this.timeZoneMapPool = timeZoneMapPool;
+  }
+  
+  public List<Record> parse(final File file) throws IOException {
+    final List<Record> records = new ArrayList<>();
+    this.parse(file, records::add);
+    return records;
+  }
+  
+  /**
+   * Parses the file and passes its records to the consumer in the order of
+   * the file. The consumer is called on the calling thread.
+   */
+  public void parse(final File file, final Consumer<Record> consumer)
+  throws IOException {
+    this.parse(file, Collections.emptyMap(), consumer);
+  }
+  
+  /**
+   * Parses the file like {@link #parse(File, Consumer)}, but takes the time
+   * zones for queries that are in the given map from there instead of asking
+   * the time zone map (or the pool).
+   * <p>
+   * This is meant for the time zones of the previous file of the same
+   * database (see {@link IplocationIpBlocks#getTimeZones()}), which contain
+   * most of the queries of the next file. The map is not changed.
+   * </p>
+   */
+  public abstract void parse(final File file,
+      final Map<TimeZoneQuery, String> knownTimeZones,
+      final Consumer<Record> consumer)
+  throws IOException;
+  
+  /**
+   * Gets the time zones that are known before the records of the file are
+   * created: the given ones and, if a pool is set, the ones the pool found
+   * for all other queries of the file.
+   */
+  protected Map<TimeZoneQuery, String> findTimeZones(final File file,
+      final Map<TimeZoneQuery, String> knownTimeZones)
+  throws IOException {
+    if (knownTimeZones == null) { throw new NullPointerException(); }
+    if (this.timeZoneMapPool == null) { return knownTimeZones; }
+
+    final Set<TimeZoneQuery> queries = this.getTimeZoneQueries(file);
+    final int numQueries = queries.size();
+    queries.removeIf(knownTimeZones::containsKey);
+    if (!knownTimeZones.isEmpty()) {
+      System.out.println("Reusing time zones for "
+          + (numQueries - queries.size()) + " of " + numQueries
+          + " locations in " + file.getName());
+    }
+    final Map<TimeZoneQuery, String> timeZones = new HashMap<>(knownTimeZones);
+    timeZones.putAll(this.timeZoneMapPool.findTimeZones(queries));
+    return timeZones;
+  }
+  
+  /**
+   * Gets the distinct queries that parsing the file makes to the time zone
+   * map for its records.
+   */
+  protected abstract Set<TimeZoneQuery> getTimeZoneQueries(final File file)
+  throws IOException;
+  
+  /**
+   * Sets the time zone of the record, taking it from the given map if it
+   * contains the query for the record and asking the time zone map otherwise.
+   */
+  protected void findTimeZone(
+      final Record record, final Map<TimeZoneQuery, String> timeZones) {
+    final TimeZoneQuery query = new TimeZoneQuery(
+        record.longitude, record.latitude, record.countryCode);
+    if (timeZones.containsKey(query)) {
+      record.timeZone = timeZones.get(query);
+    } else {
+      try {
+        record.timeZone = query.findTimeZone(this.timeZoneMap);
+      } catch (final IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+  
+  public static class Record {
+    
+    public final long firstIp;
+    
+    public final long lastIp;
+    
+    public String countryCode;
+    
+    public String timeZone;
+    
+    public double latitude;
+    
+    public double longitude;
+    
+    public Record(
+        final long firstIp, final long lastIp,
+        final String countryCode,
+        final double latitude, final double longitude) {
+      this.firstIp = firstIp;
+      this.lastIp = lastIp;
+      this.countryCode = countryCode;
+      this.latitude = latitude;
+      this.longitude = longitude;
+    }
+    
+    @Override
+    public String toString() {
+      return String.join("\t",
+          String.valueOf(this.firstIp), String.valueOf(this.lastIp),
+          this.countryCode,
+          String.valueOf(this.latitude), String.valueOf(this.longitude));
+    }
+    
+  }
+
+}
@@ -0,0 +1,135 @@
+package de.aitools.aq.geolocating.iplocations;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import de.aitools.aq.geolocating.timezones.TimeZoneMap;
+import de.aitools.aq.geolocating.timezones.TimeZoneQuery;
+
+/**
+ * Reads MaxMind GeoIP2 City and GeoLite2 City database files in the MaxMind
+ * DB format using a {@link MmdbReader}.
+ * <p>
+ * Files have to be named to match
+ * <tt>geo(ip|lite)2-city-(\\d){6}.mmdb</tt> where the six digits gives the
+ * year (4 digits) and month (2 digits). Example:
+ * <tt>geolite2-city-201606.mmdb</tt>.
+ * </p><p>
+ * A record is created for each IPv4 network that has a country ISO code
+ * (<tt>country.iso_code</tt>) and coordinates (<tt>location.latitude</tt> and
+ * <tt>location.longitude</tt>). The time zone is found from the coordinates
+ * like for the other databases, not taken from the file.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class MaxmindCityParser extends IplocationParser {
+
+  public static String FILE_NAME_FORMAT = "geo(ip|lite)2-city-(\\d){6}.mmdb";
+
+  public MaxmindCityParser(final TimeZoneMap timeZoneMap) {
+    super(timeZoneMap, FILE_NAME_FORMAT);
+  }
+
+  @Override
+  public Instant getFileInstant(final File file)
+  throws IllegalArgumentException {
+    return this.getFileMonth(file);
+  }
+
+  /**
+   * Parses the file and passes its records to the consumer in the order of
+   * their IPs.
+   * <p>
+   * As there is no text to parse, the search tree is walked on the calling
+   * thread directly in the memory-mapped file. The data of a network is only
+   * decoded once even if it is used for many networks.
+   * </p>
+   */
+  @Override
+  public void parse(final File file,
+      final Map<TimeZoneQuery, String> knownTimeZones,
+      final Consumer<Record> consumer)
+  throws IOException {
+    final Map<TimeZoneQuery, String> timeZones =
+        this.findTimeZones(file, knownTimeZones);
+    this.readRecords(file, record -> {
+      this.findTimeZone(record, timeZones);
+      if (record.timeZone == null) {
+        if (!record.countryCode.equals("AQ")) {
+          // We don't have time zones for Antarctica, so this is not an error
+          // that the record has no time zone
+          System.err.println("NO TIME ZONE: " + record);
+        }
+      } else {
+        consumer.accept(record);
+      }
+    });
+  }
+
+  @Override
+  protected Set<TimeZoneQuery> getTimeZoneQueries(final File file)
+  throws IOException {
+    final Set<TimeZoneQuery> queries = new HashSet<>();
+    this.readRecords(file, record -> queries.add(new TimeZoneQuery(
+        record.longitude, record.latitude, record.countryCode)));
+    return queries;
+  }
+
+  /**
+   * Creates the records (without time zone) for all IPv4 networks of the file
+   * that have a country and coordinates.
+   */
+  private void readRecords(final File file, final Consumer<Record> consumer)
+  throws IOException {
+    final MmdbReader reader = new MmdbReader(file);
+    // Many networks share their data, and the decoded records are used as
+    // templates for them (null if the data has no country or coordinates)
+    final Map<Integer, Record> templates = new HashMap<>();
+    reader.forEachIpv4Network((firstIp, lastIp, dataOffset) -> {
+      Record template = templates.get(dataOffset);
+      if (template == null && !templates.containsKey(dataOffset)) {
+        template = MaxmindCityParser.toRecord(reader.decode(dataOffset));
+        templates.put(dataOffset, template);
+      }
+      if (template != null) {
+        consumer.accept(new Record(firstIp, lastIp, template.countryCode,
+            template.latitude, template.longitude));
+      }
+    });
+  }
+
+  private static Record toRecord(final Object data) {
+    final Object countryCode =
+        MaxmindCityParser.get(data, "country", "iso_code");
+    final Object latitude = MaxmindCityParser.get(data, "location", "latitude");
+    final Object longitude =
+        MaxmindCityParser.get(data, "location", "longitude");
+    if (!(countryCode instanceof String)
+        || !(latitude instanceof Number) || !(longitude instanceof Number)) {
+      return null;
+    }
+    return new Record(-1, -1, (String) countryCode,
+        ((Number) latitude).doubleValue(), ((Number) longitude).doubleValue());
+  }
+
+  /**
+   * Gets the value at the path of map keys, or null if there is none.
+   */
+  private static Object get(final Object data, final String... keys) {
+    Object value = data;
+    for (final String key : keys) {
+      if (!(value instanceof Map)) { return null; }
+      value = ((Map<?, ?>) value).get(key);
+    }
+    return value;
+  }
+
+}
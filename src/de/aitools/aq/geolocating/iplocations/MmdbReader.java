@@ -0,0 +1,415 @@
+package de.aitools.aq.geolocating.iplocations;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the IPv4 part of MaxMind DB files (<tt>.mmdb</tt>) from memory-mapped
+ * files.
+ * <p>
+ * An MMDB file consists of a binary search tree over the bits of the IP
+ * addresses, a data section with the records that the leaves point to, and a
+ * metadata section at the end of the file. Data is decoded to Java objects:
+ * maps ({@link Map} from {@link String}), arrays ({@link List}), strings,
+ * doubles, floats, booleans, byte arrays, and integers (as {@link Integer} for
+ * signed 32-bit integers, {@link Long} for unsigned integers of up to 32 bits,
+ * and {@link BigInteger} for larger ones).
+ * </p><p>
+ * See <a href="https://maxmind.github.io/MaxMind-DB/">https://maxmind.github.io/MaxMind-DB/</a>
+ * for the format.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class MmdbReader {
+
+  private static final byte[] METADATA_START = {
+    (byte) 0xAB, (byte) 0xCD, (byte) 0xEF,
+    'M', 'a', 'x', 'M', 'i', 'n', 'd', '.', 'c', 'o', 'm'
+  };
+
+  private static final int MAX_METADATA_SIZE = 128 * 1024;
+
+  private static final int DATA_SECTION_SEPARATOR_SIZE = 16;
+
+  private static final int IPV4_BITS = 32;
+
+  private static final int IPV4_IN_IPV6_PREFIX_BITS = 96;
+
+  private static final int TYPE_EXTENDED = 0;
+  private static final int TYPE_POINTER = 1;
+  private static final int TYPE_STRING = 2;
+  private static final int TYPE_DOUBLE = 3;
+  private static final int TYPE_BYTES = 4;
+  private static final int TYPE_UINT16 = 5;
+  private static final int TYPE_UINT32 = 6;
+  private static final int TYPE_MAP = 7;
+  private static final int TYPE_INT32 = 8;
+  private static final int TYPE_UINT64 = 9;
+  private static final int TYPE_UINT128 = 10;
+  private static final int TYPE_ARRAY = 11;
+  private static final int TYPE_BOOLEAN = 14;
+  private static final int TYPE_FLOAT = 15;
+
+  private final File file;
+
+  private final ByteBuffer buffer;
+
+  private final Map<String, Object> metadata;
+
+  private final long nodeCount;
+
+  private final int recordSize;
+
+  private final int dataSectionStart;
+
+  private final long ipv4Root;
+
+  /**
+   * Maps the file and reads its metadata.
+   */
+  public MmdbReader(final File file) throws IOException {
+    if (file == null) { throw new NullPointerException(); }
+    this.file = file;
+    try (final FileChannel channel =
+        FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("File too large: " + file);
+      }
+      this.buffer =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    final int metadataStart = this.findMetadataStart();
+    final Object metadata =
+        new Decoder(metadataStart, metadataStart).decode();
+    if (!(metadata instanceof Map)) {
+      throw new IOException("Invalid metadata in " + file);
+    }
+    @SuppressWarnings("unchecked")
+    final Map<String, Object> metadataMap = (Map<String, Object>) metadata;
+    this.metadata = metadataMap;
+    this.nodeCount = this.getMetadataNumber("node_count");
+    this.recordSize = (int) this.getMetadataNumber("record_size");
+    if (this.recordSize != 24 && this.recordSize != 28
+        && this.recordSize != 32) {
+      throw new IOException("Unsupported record size "
+          + this.recordSize + " in " + file);
+    }
+    final long searchTreeSize = this.nodeCount * this.recordSize / 4;
+    if (searchTreeSize + DATA_SECTION_SEPARATOR_SIZE > metadataStart) {
+      throw new IOException("Invalid node count in " + file);
+    }
+    this.dataSectionStart =
+        (int) searchTreeSize + DATA_SECTION_SEPARATOR_SIZE;
+
+    final long ipVersion = this.getMetadataNumber("ip_version");
+    if (ipVersion == 4) {
+      this.ipv4Root = 0;
+    } else if (ipVersion == 6) {
+      // IPv4 addresses are stored as ::a.b.c.d
+      long node = 0;
+      for (int b = 0;
+          b < IPV4_IN_IPV6_PREFIX_BITS && node < this.nodeCount; ++b) {
+        node = this.getRecord(node, false);
+      }
+      this.ipv4Root = node;
+    } else {
+      throw new IOException("Unsupported IP version "
+          + ipVersion + " in " + file);
+    }
+  }
+
+  private int findMetadataStart() throws IOException {
+    final int limit = this.buffer.limit();
+    final int searchEnd = Math.max(0, limit - MAX_METADATA_SIZE);
+    for (int start = limit - METADATA_START.length;
+        start >= searchEnd; --start) {
+      boolean found = true;
+      for (int b = 0; b < METADATA_START.length && found; ++b) {
+        found = this.buffer.get(start + b) == METADATA_START[b];
+      }
+      if (found) { return start + METADATA_START.length; }
+    }
+    throw new IOException("No MaxMind DB metadata in " + this.file);
+  }
+
+  private long getMetadataNumber(final String key) throws IOException {
+    final Object value = this.metadata.get(key);
+    if (!(value instanceof Number)) {
+      throw new IOException("No " + key + " in metadata of " + this.file);
+    }
+    return ((Number) value).longValue();
+  }
+
+  /**
+   * Gets the metadata of the file, like the <tt>database_type</tt> and the
+   * <tt>build_epoch</tt>.
+   */
+  public Map<String, Object> getMetadata() {
+    return this.metadata;
+  }
+
+  /**
+   * Gets the data for the IPv4 address, or null if the file has none.
+   */
+  public Object get(final long ip) throws IOException {
+    long node = this.ipv4Root;
+    for (int b = IPV4_BITS - 1; b >= 0 && node < this.nodeCount; --b) {
+      node = this.getRecord(node, ((ip >>> b) & 1) == 1);
+    }
+    if (node <= this.nodeCount) { return null; }
+    return this.decode(this.getDataOffset(node));
+  }
+
+  /**
+   * Consumer for the networks of a file.
+   */
+  @FunctionalInterface
+  public interface NetworkConsumer {
+
+    /**
+     * Accepts a network of consecutive IP addresses that all have the data at
+     * the given offset (see {@link MmdbReader#decode(int)}).
+     */
+    void accept(final long firstIp, final long lastIp, final int dataOffset)
+    throws IOException;
+
+  }
+
+  /**
+   * Passes all IPv4 networks that have data to the consumer in the order of
+   * their IPs.
+   * <p>
+   * Adjacent networks with the same data are passed as one network.
+   * </p>
+   */
+  public void forEachIpv4Network(final NetworkConsumer consumer)
+  throws IOException {
+    final long[] pending = { -1, -1, -1 }; // first IP, last IP, data offset
+    this.forEachNetwork(this.ipv4Root, 0, 0, (firstIp, lastIp, dataOffset) -> {
+      if (pending[2] == dataOffset && pending[1] + 1 == firstIp) {
+        pending[1] = lastIp;
+      } else {
+        if (pending[2] >= 0) {
+          consumer.accept(pending[0], pending[1], (int) pending[2]);
+        }
+        pending[0] = firstIp;
+        pending[1] = lastIp;
+        pending[2] = dataOffset;
+      }
+    });
+    if (pending[2] >= 0) {
+      consumer.accept(pending[0], pending[1], (int) pending[2]);
+    }
+  }
+
+  private void forEachNetwork(final long node, final long prefix,
+      final int depth, final NetworkConsumer consumer)
+  throws IOException {
+    if (node < this.nodeCount) {
+      if (depth == IPV4_BITS) {
+        throw new IOException("Search tree too deep in " + this.file);
+      }
+      final long rightPrefix = prefix | (1L << (IPV4_BITS - depth - 1));
+      this.forEachNetwork(
+          this.getRecord(node, false), prefix, depth + 1, consumer);
+      this.forEachNetwork(
+          this.getRecord(node, true), rightPrefix, depth + 1, consumer);
+    } else if (node > this.nodeCount) {
+      final long lastIp = prefix | ((1L << (IPV4_BITS - depth)) - 1);
+      consumer.accept(prefix, lastIp, this.getDataOffset(node));
+    }
+    // node == nodeCount: no data
+  }
+
+  private long getRecord(final long node, final boolean right) {
+    final int offset = (int) (node * this.recordSize / 4);
+    switch (this.recordSize) {
+    case 24:
+      return this.getUnsigned(right ? offset + 3 : offset, 3);
+    case 28:
+      if (right) {
+        return ((this.buffer.get(offset + 3) & 0x0FL) << 24)
+            | this.getUnsigned(offset + 4, 3);
+      } else {
+        return ((this.buffer.get(offset + 3) & 0xF0L) << 20)
+            | this.getUnsigned(offset, 3);
+      }
+    default: // 32
+      return this.getUnsigned(right ? offset + 4 : offset, 4);
+    }
+  }
+
+  private int getDataOffset(final long node) throws IOException {
+    final long offset = node - this.nodeCount - DATA_SECTION_SEPARATOR_SIZE;
+    if (offset < 0 || this.dataSectionStart + offset >= this.buffer.limit()) {
+      throw new IOException("Invalid data pointer in " + this.file);
+    }
+    return (int) offset;
+  }
+
+  private long getUnsigned(final int position, final int size) {
+    long value = 0;
+    for (int b = 0; b < size; ++b) {
+      value = (value << 8) | (this.buffer.get(position + b) & 0xFF);
+    }
+    return value;
+  }
+
+  /**
+   * Decodes the data at the offset within the data section.
+   */
+  public Object decode(final int dataOffset) throws IOException {
+    return new Decoder(
+        this.dataSectionStart, this.dataSectionStart + dataOffset).decode();
+  }
+
+  private class Decoder {
+
+    private final int base;
+
+    private int position;
+
+    private Decoder(final int base, final int position) {
+      this.base = base;
+      this.position = position;
+    }
+
+    private Object decode() throws IOException {
+      final int control = this.next();
+      int type = control >>> 5;
+      if (type == TYPE_POINTER) {
+        final int pointer = this.readPointer(control);
+        final int next = this.position;
+        this.position = this.base + pointer;
+        final Object value = this.decode();
+        this.position = next;
+        return value;
+      }
+      if (type == TYPE_EXTENDED) {
+        type = 7 + this.next();
+      }
+      final int size = this.readSize(control);
+      switch (type) {
+      case TYPE_STRING:
+        return new String(this.readBytes(size), StandardCharsets.UTF_8);
+      case TYPE_DOUBLE:
+        this.checkSize(size, 8);
+        return Double.longBitsToDouble(this.readUnsigned(size));
+      case TYPE_BYTES:
+        return this.readBytes(size);
+      case TYPE_UINT16:
+      case TYPE_UINT32:
+        this.checkSize(size, 4);
+        return this.readUnsigned(size);
+      case TYPE_MAP:
+        final Map<String, Object> map = new LinkedHashMap<>();
+        for (int e = 0; e < size; ++e) {
+          final Object key = this.decode();
+          if (!(key instanceof String)) {
+            throw new IOException("Invalid map key in " + MmdbReader.this.file);
+          }
+          map.put((String) key, this.decode());
+        }
+        return map;
+      case TYPE_INT32:
+        this.checkSize(size, 4);
+        return (int) this.readUnsigned(size);
+      case TYPE_UINT64:
+      case TYPE_UINT128:
+        return new BigInteger(1, this.readBytes(size));
+      case TYPE_ARRAY:
+        final List<Object> array = new ArrayList<>(size);
+        for (int e = 0; e < size; ++e) {
+          array.add(this.decode());
+        }
+        return array;
+      case TYPE_BOOLEAN:
+        return size != 0;
+      case TYPE_FLOAT:
+        this.checkSize(size, 4);
+        return Float.intBitsToFloat((int) this.readUnsigned(size));
+      default:
+        throw new IOException("Unsupported data type "
+            + type + " in " + MmdbReader.this.file);
+      }
+    }
+
+    private int readPointer(final int control) throws IOException {
+      final int pointerSize = ((control >>> 3) & 0x3) + 1;
+      final int high = control & 0x7;
+      switch (pointerSize) {
+      case 1:
+        return (high << 8) | (int) this.readUnsigned(1);
+      case 2:
+        return ((high << 16) | (int) this.readUnsigned(2)) + 2048;
+      case 3:
+        return ((high << 24) | (int) this.readUnsigned(3)) + 526336;
+      default:
+        final long pointer = this.readUnsigned(4);
+        if (pointer > Integer.MAX_VALUE) {
+          throw new IOException("Invalid pointer in " + MmdbReader.this.file);
+        }
+        return (int) pointer;
+      }
+    }
+
+    private int readSize(final int control) throws IOException {
+      final int size = control & 0x1F;
+      switch (size) {
+      case 29:
+        return 29 + (int) this.readUnsigned(1);
+      case 30:
+        return 285 + (int) this.readUnsigned(2);
+      case 31:
+        return 65821 + (int) this.readUnsigned(3);
+      default:
+        return size;
+      }
+    }
+
+    private void checkSize(final int size, final int maxSize)
+    throws IOException {
+      if (size > maxSize) {
+        throw new IOException("Invalid data size in " + MmdbReader.this.file);
+      }
+    }
+
+    private int next() throws IOException {
+      if (this.position < 0
+          || this.position >= MmdbReader.this.buffer.limit()) {
+        throw new IOException("Data outside of " + MmdbReader.this.file);
+      }
+      return MmdbReader.this.buffer.get(this.position++) & 0xFF;
+    }
+
+    private long readUnsigned(final int size) throws IOException {
+      long value = 0;
+      for (int b = 0; b < size; ++b) {
+        value = (value << 8) | this.next();
+      }
+      return value;
+    }
+
+    private byte[] readBytes(final int size) throws IOException {
+      final byte[] bytes = new byte[size];
+      for (int b = 0; b < size; ++b) {
+        bytes[b] = (byte) this.next();
+      }
+      return bytes;
+    }
+
+  }
+
+}
@@ -0,0 +1,178 @@
+package de.aitools.aq.geolocating.rir;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.aitools.aq.geolocating.timezones.TimeZones;
+import de.aitools.aq.geolocating.timezones.TimeZones.TimeZone;
+
+/**
+ * Candidates for the country and time zone of an IP address according to the
+ * country codes of a {@link RirIpBlockEntry}.
+ * <p>
+ * Objects of this class are immutable and shared: there is one object for
+ * each set of country codes (see {@link #forCountryCodes(Iterable)}), which
+ * is created when it is first needed. So many entries with the same country
+ * codes reference the same candidates.
+ * </p><p>
+ * Besides the sets, the candidates are stored as bitsets over the indices of
+ * {@link TimeZones#getCountryIndex(String)} and
+ * {@link TimeZones#getIndex(String)}, so that checking a geolocation against
+ * them needs no string lookups.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public final class RirCandidates {
+
+  /**
+   * Candidates for an empty set of country codes.
+   */
+  public static final RirCandidates NONE =
+      new RirCandidates(Collections.emptySet());
+
+  private static final Map<Set<String>, RirCandidates> BY_COUNTRY_CODES =
+      new ConcurrentHashMap<>();
+
+  private final Set<String> countryCodes;
+
+  private final Set<String> timeZones;
+
+  /**
+   * Bit <tt>i</tt> is set if the country code with index <tt>i</tt> (see
+   * {@link TimeZones#getCountryIndex(String)}) is a candidate.
+   */
+  private final long[] countryCodeBits;
+
+  /**
+   * Bit <tt>i</tt> is set if the time zone with index <tt>i</tt> (see
+   * {@link TimeZones#getIndex(String)}) is a candidate.
+   */
+  private final long[] timeZoneBits;
+
+  private RirCandidates(final Iterable<String> countryCodes) {
+    final Set<String> countryCodeCandidates = new HashSet<>(1);
+    final Set<String> timeZoneCandidates = new HashSet<>();
+
+    for (final String countryCode : countryCodes) {
+      final List<TimeZone> timeZones = TimeZones.forCountryCode(countryCode);
+      if (!timeZones.isEmpty()) { // Something like EU or GB
+        countryCodeCandidates.add(countryCode);
+      }
+      for (final TimeZone timeZone : timeZones) {
+        timeZoneCandidates.add(timeZone.getId().toString());
+      }
+    }
+
+    if (countryCodeCandidates.isEmpty()) {
+      // Better only EU than nothing
+      for (final String countryCode : countryCodes) {
+        countryCodeCandidates.add(countryCode);
+      }
+    }
+
+    this.countryCodes = Collections.unmodifiableSet(countryCodeCandidates);
+    this.timeZones = Collections.unmodifiableSet(timeZoneCandidates);
+
+    this.countryCodeBits =
+        new long[(TimeZones.NUM_COUNTRY_INDICES + Long.SIZE - 1) / Long.SIZE];
+    for (final String countryCode : countryCodeCandidates) {
+      RirCandidates.setBit(
+          this.countryCodeBits, TimeZones.getCountryIndex(countryCode));
+    }
+    this.timeZoneBits =
+        new long[(TimeZones.all().size() + Long.SIZE - 1) / Long.SIZE];
+    for (final String timeZone : timeZoneCandidates) {
+      RirCandidates.setBit(this.timeZoneBits, TimeZones.getIndex(timeZone));
+    }
+  }
+
+  /**
+   * Gets the shared candidates for the given country codes, creating them if
+   * they were not needed before.
+   */
+  public static RirCandidates forCountryCodes(
+      final Iterable<String> countryCodes) {
+    final Set<String> key = new TreeSet<>();
+    for (final String countryCode : countryCodes) {
+      if (countryCode == null) { throw new NullPointerException(); }
+      key.add(countryCode);
+    }
+    if (key.isEmpty()) { return NONE; }
+
+    final RirCandidates candidates = BY_COUNTRY_CODES.get(key);
+    if (candidates != null) { return candidates; }
+    return BY_COUNTRY_CODES.computeIfAbsent(
+        Collections.unmodifiableSet(key), RirCandidates::new);
+  }
+
+  /**
+   * Gets the country codes of the entry for which there are time zones, or
+   * all its country codes if there are time zones for none of them.
+   * <p>
+   * The set can not be modified.
+   * </p>
+   */
+  public Set<String> getCountryCodes() {
+    return this.countryCodes;
+  }
+
+  /**
+   * Gets the ids of all time zones of all country codes of the entry.
+   * <p>
+   * The set can not be modified.
+   * </p>
+   */
+  public Set<String> getTimeZones() {
+    return this.timeZones;
+  }
+
+  /**
+   * Checks whether the country code is in {@link #getCountryCodes()}, where
+   * the index has to be the one of the country code (see
+   * {@link TimeZones#getCountryIndex(String)}).
+   * <p>
+   * Unless the index is -1, this only tests a bit.
+   * </p>
+   */
+  public boolean containsCountryCode(
+      final int countryIndex, final String countryCode) {
+    if (countryIndex < 0) {
+      return this.countryCodes.contains(countryCode);
+    } else {
+      return RirCandidates.getBit(this.countryCodeBits, countryIndex);
+    }
+  }
+
+  /**
+   * Checks whether the time zone with the index (see
+   * {@link TimeZones#getIndex(String)}) is in {@link #getTimeZones()}, which
+   * is never the case for index -1.
+   */
+  public boolean containsTimeZone(final int timeZoneIndex) {
+    return RirCandidates.getBit(this.timeZoneBits, timeZoneIndex);
+  }
+
+  @Override
+  public String toString() {
+    return this.countryCodes + " " + this.timeZones;
+  }
+
+  private static void setBit(final long[] bits, final int index) {
+    if (index >= 0) {
+      bits[index / Long.SIZE] |= 1L << index;
+    }
+  }
+
+  private static boolean getBit(final long[] bits, final int index) {
+    if (index < 0 || index / Long.SIZE >= bits.length) { return false; }
+    return (bits[index / Long.SIZE] & (1L << index)) != 0;
+  }
+
+}
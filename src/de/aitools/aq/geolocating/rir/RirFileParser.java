@@ -0,0 +1,421 @@
+package de.aitools.aq.geolocating.rir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Byte-level parser for RIR registry files (the pipe-separated "statistics
+ * exchange format").
+ * <p>
+ * The parser works directly on the bytes of the file and reports each valid
+ * IPv4 assignment or allocation as primitive values to a {@link Handler}. It
+ * creates no objects per line: fields are only located by their offsets,
+ * addresses and sizes are parsed into longs, country codes are taken from a
+ * table of shared strings and dates are converted to milliseconds by epoch day
+ * arithmetic using the UTC offset of the file. Lines that can not be parsed
+ * are printed to standard error and ignored.
+ * </p><p>
+ * The accepted lines and the resulting values are the same as for the former
+ * <tt>split</tt>/{@link SimpleDateFormat} based parsing in {@link RirIpBlocks}.
+ * In particular, the UTC offset of a file is resolved like
+ * {@link TimeZone#getTimeZone(String)} resolves <tt>"UTC" + offset</tt>.
+ * </p><p>
+ * A parser is not thread-safe, but it can be reused for several files.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class RirFileParser {
+
+  private static final String RIR_DATE_FORMAT = "yyyyMMdd";
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private static final int FIELD_COUNTRY_CODE = 1;
+
+  private static final int FIELD_PROTOCOL = 2;
+
+  private static final int FIELD_START = 3;
+
+  private static final int FIELD_SIZE = 4;
+
+  private static final int FIELD_DATE = 5;
+
+  private static final int FIELD_STATUS = 6;
+
+  private static final int NUM_FIELDS = 7;
+
+  private static final int NUM_DATE_DIGITS = 8;
+
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+  private static final byte[] PROTOCOL_IPV4 = ascii("ipv4");
+
+  private static final byte[] STATUS_ASSIGNED = ascii("assigned");
+
+  private static final byte[] STATUS_ALLOCATED = ascii("allocated");
+
+  private static final byte[] DATE_NONE = ascii("00000000");
+
+  private static final int NUM_LETTERS = 26;
+
+  private final String[] countryCodes;
+
+  private final int[] fieldStarts;
+
+  private final int[] fieldEnds;
+
+  private byte[] buffer;
+
+  private String rirOffsetToUtc;
+
+  private long rirOffsetMillis;
+
+  private int lastDate;
+
+  private long lastDateMillis;
+
+  /**
+   * Receives the IPv4 blocks parsed from a RIR registry file.
+   */
+  @FunctionalInterface
+  public interface Handler {
+
+    /**
+     * Called for each assigned or allocated IPv4 block with a country code and
+     * a start date.
+     * @param firstIp The first IP of the block as encoded by
+     * {@link de.aitools.aq.geolocating.collector.IpBlock#ipToLong(String)}
+     * @param lastIp The last IP of the block
+     * @param countryCode The country code of the block
+     * @param start The start of the assignment in milliseconds since the epoch
+     */
+    void handle(final long firstIp, final long lastIp,
+        final String countryCode, final long start);
+
+  }
+
+  public RirFileParser() {
+    this.countryCodes = new String[NUM_LETTERS * NUM_LETTERS];
+    this.fieldStarts = new int[NUM_FIELDS];
+    this.fieldEnds = new int[NUM_FIELDS];
+    this.buffer = new byte[BUFFER_SIZE];
+    this.setRirOffsetToUtc("");
+  }
+
+  /**
+   * Parses the registry file from the input and passes each IPv4 block to the
+   * handler.
+   * @param input The registry file content (not closed by this method)
+   * @param name Name of the registry file for messages
+   * @param handler The handler for the parsed blocks
+   * @throws IOException If reading from the input failed
+   */
+  public void parse(
+      final InputStream input, final String name, final Handler handler)
+  throws IOException {
+    boolean hasHeader = false;
+    boolean isEmpty = true;
+    int start = 0;
+    int end = 0;
+    int scan = 0;
+    boolean endOfInput = false;
+    while (true) {
+      // Find the next line end
+      while (scan < end && this.buffer[scan] != '\n') { ++scan; }
+
+      if (scan == end && !endOfInput) {
+        // Need more input
+        if (start > 0) {
+          System.arraycopy(this.buffer, start, this.buffer, 0, end - start);
+          end -= start;
+          scan -= start;
+          start = 0;
+        }
+        if (end == this.buffer.length) {
+          this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+        }
+        final int read = input.read(this.buffer, end, this.buffer.length - end);
+        if (read < 0) {
+          endOfInput = true;
+        } else {
+          end += read;
+        }
+        continue;
+      }
+
+      if (scan == end && start == end) { break; } // Nothing left
+
+      int lineEnd = scan;
+      if (lineEnd > start && this.buffer[lineEnd - 1] == '\r') { --lineEnd; }
+      isEmpty = false;
+      if (lineEnd == start || this.buffer[start] != '#') {
+        if (!hasHeader) {
+          this.parseHeader(start, lineEnd);
+          hasHeader = true;
+        }
+        this.parseLine(start, lineEnd, handler);
+      }
+
+      if (scan == end) { break; } // Last line without line end
+      start = scan + 1;
+      scan = start;
+    }
+
+    if (isEmpty) {
+      System.err.println("EMPTY: " + name);
+    }
+  }
+
+  private void parseHeader(final int start, final int end) {
+    final int numFields = this.findFields(start, end);
+    if (numFields > FIELD_STATUS
+        && this.fieldStarts[FIELD_STATUS] < this.fieldEnds[FIELD_STATUS]) {
+      this.setRirOffsetToUtc(this.getString(FIELD_STATUS));
+    } else {
+      this.setRirOffsetToUtc("");
+    }
+  }
+
+  private void setRirOffsetToUtc(final String rirOffsetToUtc) {
+    this.rirOffsetToUtc = rirOffsetToUtc;
+    this.rirOffsetMillis =
+        TimeZone.getTimeZone("UTC" + rirOffsetToUtc).getRawOffset();
+    this.lastDate = -1;
+    this.lastDateMillis = 0;
+  }
+
+  private void parseLine(final int start, final int end,
+      final Handler handler) {
+    try {
+      final int numFields = this.findFields(start, end);
+      if (numFields <= FIELD_PROTOCOL) {
+        throw new IllegalArgumentException("Too few fields: " + numFields);
+      }
+      if (!this.fieldEquals(FIELD_PROTOCOL, PROTOCOL_IPV4)) { return; }
+
+      final int countryStart = this.fieldStarts[FIELD_COUNTRY_CODE];
+      final int countryEnd = this.fieldEnds[FIELD_COUNTRY_CODE];
+      if (countryStart == countryEnd) { return; }
+      if (countryEnd - countryStart == 1
+          && this.buffer[countryStart] == '*') { return; }
+
+      if (numFields <= FIELD_STATUS) {
+        throw new IllegalArgumentException("Too few fields: " + numFields);
+      }
+      if (!this.fieldEquals(FIELD_STATUS, STATUS_ASSIGNED)
+          && !this.fieldEquals(FIELD_STATUS, STATUS_ALLOCATED)) { return; }
+
+      final long firstIp = this.parseIp(FIELD_START);
+      final long blockSize = this.parseLong(FIELD_SIZE);
+      final long lastIp = firstIp + blockSize - 1;
+
+      if (this.fieldEquals(FIELD_DATE, DATE_NONE)) { return; }
+      final long startMillis = this.parseDate(FIELD_DATE);
+
+      handler.handle(firstIp, lastIp,
+          this.getCountryCode(countryStart, countryEnd), startMillis);
+    } catch (final Exception e) {
+      System.err.println("IGNORING invalid line: \""
+          + new String(this.buffer, start, end - start,
+              StandardCharsets.ISO_8859_1)
+          + "\": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Locates the first {@link #NUM_FIELDS} fields of the line and returns the
+   * number of fields found, where trailing empty fields are not counted (like
+   * for {@link String#split(String)}).
+   */
+  private int findFields(final int start, final int end) {
+    int numFields = 0;
+    int fieldStart = start;
+    for (int position = start; position <= end && numFields < NUM_FIELDS;
+        ++position) {
+      if (position == end || this.buffer[position] == '|') {
+        this.fieldStarts[numFields] = fieldStart;
+        this.fieldEnds[numFields] = position;
+        ++numFields;
+        fieldStart = position + 1;
+      }
+    }
+    if (numFields == NUM_FIELDS && this.fieldEnds[NUM_FIELDS - 1] < end) {
+      return numFields; // More fields follow
+    }
+    while (numFields > 1
+        && this.fieldStarts[numFields - 1] == this.fieldEnds[numFields - 1]) {
+      --numFields;
+    }
+    return numFields;
+  }
+
+  private boolean fieldEquals(final int field, final byte[] value) {
+    final int start = this.fieldStarts[field];
+    if (this.fieldEnds[field] - start != value.length) { return false; }
+    for (int i = 0; i < value.length; ++i) {
+      if (this.buffer[start + i] != value[i]) { return false; }
+    }
+    return true;
+  }
+
+  private String getString(final int field) {
+    final int start = this.fieldStarts[field];
+    return new String(this.buffer, start, this.fieldEnds[field] - start,
+        StandardCharsets.ISO_8859_1);
+  }
+
+  private String getCountryCode(final int start, final int end) {
+    if (end - start == 2) {
+      final int first = this.buffer[start] - 'A';
+      final int second = this.buffer[start + 1] - 'A';
+      if (first >= 0 && first < NUM_LETTERS
+          && second >= 0 && second < NUM_LETTERS) {
+        final int index = first * NUM_LETTERS + second;
+        String countryCode = this.countryCodes[index];
+        if (countryCode == null) {
+          countryCode = new String(this.buffer, start, 2,
+              StandardCharsets.ISO_8859_1);
+          this.countryCodes[index] = countryCode;
+        }
+        return countryCode;
+      }
+    }
+    return new String(this.buffer, start, end - start,
+        StandardCharsets.ISO_8859_1);
+  }
+
+  private long parseIp(final int field) {
+    final int start = this.fieldStarts[field];
+    final int end = this.fieldEnds[field];
+    long ip = 0;
+    int blockStart = start;
+    int numBlocks = 0;
+    for (int position = start; position <= end; ++position) {
+      if (position == end || this.buffer[position] == '.') {
+        if (numBlocks == 4) { break; }
+        final long value = this.parseLong(blockStart, position);
+        if (value < 0 || value > 255) {
+          throw new IllegalArgumentException(
+              "IP block values has to be within [0,255]");
+        }
+        ip = ip * 256 + value;
+        ++numBlocks;
+        blockStart = position + 1;
+      }
+    }
+    // Trailing dots are ignored like by String#split(String)
+    while (blockStart < end && this.buffer[blockStart] == '.') {
+      ++blockStart;
+    }
+    if (numBlocks != 4 || blockStart < end) {
+      throw new IllegalArgumentException("Number of blocks in IP \""
+          + this.getString(field) + "\" is not 4");
+    }
+    return ip;
+  }
+
+  private long parseLong(final int field) {
+    return this.parseLong(this.fieldStarts[field], this.fieldEnds[field]);
+  }
+
+  /**
+   * Parses a decimal number like {@link Long#parseLong(String)}.
+   */
+  private long parseLong(final int start, final int end) {
+    int position = start;
+    boolean negative = false;
+    if (position < end
+        && (this.buffer[position] == '-' || this.buffer[position] == '+')) {
+      negative = this.buffer[position] == '-';
+      ++position;
+    }
+    if (position == end) {
+      throw new NumberFormatException("No digits");
+    }
+    long value = 0;
+    for (; position < end; ++position) {
+      final int digit = this.buffer[position] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("Not a digit: "
+            + (char) this.buffer[position]);
+      }
+      if (value > (Long.MAX_VALUE - digit) / 10) {
+        throw new NumberFormatException("Number too large");
+      }
+      value = value * 10 + digit;
+    }
+    return negative ? -value : value;
+  }
+
+  private long parseDate(final int field) throws ParseException {
+    final int start = this.fieldStarts[field];
+    final int end = this.fieldEnds[field];
+    if (end - start != NUM_DATE_DIGITS) {
+      return this.parseDateWithDateFormat(field);
+    }
+    int date = 0;
+    for (int position = start; position < end; ++position) {
+      final int digit = this.buffer[position] - '0';
+      if (digit < 0 || digit > 9) {
+        return this.parseDateWithDateFormat(field);
+      }
+      date = date * 10 + digit;
+    }
+
+    if (date != this.lastDate) {
+      final int year = date / 10000;
+      final int month = (date / 100) % 100;
+      final int day = date % 100;
+      if (year <= 1582) { // Julian calendar in SimpleDateFormat
+        return this.parseDateWithDateFormat(field);
+      }
+      // Out-of-range months and days roll over like in a lenient Calendar
+      final int monthIndex = month - 1;
+      final long epochDay = RirFileParser.getEpochDay(
+          year + Math.floorDiv(monthIndex, 12),
+          Math.floorMod(monthIndex, 12) + 1)
+          + day - 1;
+      this.lastDate = date;
+      this.lastDateMillis = epochDay * MILLIS_PER_DAY - this.rirOffsetMillis;
+    }
+    return this.lastDateMillis;
+  }
+
+  private long parseDateWithDateFormat(final int field)
+  throws ParseException {
+    final DateFormat dateFormat = new SimpleDateFormat(RIR_DATE_FORMAT);
+    dateFormat.setCalendar(Calendar.getInstance(
+        TimeZone.getTimeZone("UTC" + this.rirOffsetToUtc)));
+    return dateFormat.parse(this.getString(field)).getTime();
+  }
+
+  /**
+   * Gets the days since the epoch of the first day of the month in the
+   * proleptic Gregorian calendar.
+   */
+  private static long getEpochDay(final int year, final int month) {
+    // Shift the year start to March so that the leap day is at the end
+    final long y = month <= 2 ? year - 1 : year;
+    final long era = Math.floorDiv(y, 400);
+    final long yearOfEra = y - era * 400;
+    final long monthFromMarch = (month + 9) % 12;
+    final long dayOfYear = (153 * monthFromMarch + 2) / 5;
+    final long dayOfEra =
+        yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  private static byte[] ascii(final String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
+
+}
@@ -10,6 +10,8 @@ public class RirIpBlockEntry implements Cloneable {
   
   private Set<String> countryCodes;
   
+  private RirCandidates candidates;
+  
   private RirIpBlockEntry next;
 
   public RirIpBlockEntry(
@@ -20,6 +22,7 @@ public class RirIpBlockEntry implements Cloneable {
     this.start = startTime;
     this.countryCodes = new TreeSet<>();
     this.countryCodes.add(countryCode);
+    this.candidates = null;
     this.next = null;
   }
   
@@ -35,6 +38,8 @@ public class RirIpBlockEntry implements Cloneable {
     for (int c = 1; c < countryCodes.length; ++c) {
       entry.countryCodes.add(countryCodes[c]);
     }
+    // Computed now so that no query has to do it
+    entry.candidates = RirCandidates.forCountryCodes(entry.countryCodes);
     
     if (entries.length == 2) {
       final String nextEntries = entries[1];
@@ -48,6 +53,19 @@ public class RirIpBlockEntry implements Cloneable {
     return this.countryCodes;
   }
   
+  /**
+   * Gets the country and time zone candidates for the country codes of this
+   * entry, which are shared with all entries of the same country codes.
+   */
+  public RirCandidates getCandidates() {
+    RirCandidates candidates = this.candidates;
+    if (candidates == null) {
+      candidates = RirCandidates.forCountryCodes(this.countryCodes);
+      this.candidates = candidates;
+    }
+    return candidates;
+  }
+  
   public Instant getStart() {
     return this.start;
   }
@@ -74,6 +92,7 @@ public class RirIpBlockEntry implements Cloneable {
       
       // Add new country code
       this.countryCodes.add(countryCode);
+      this.candidates = null;
       return this;
 
     } else { // start> this.start      
@@ -6,25 +6,21 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Writer;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.time.Instant;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.TimeZone;
 
 import de.aitools.aq.geolocating.Geolocator;
-import de.aitools.aq.geolocating.collector.IpBlock;
 import de.aitools.aq.geolocating.collector.IpBlocks;
+import de.aitools.aq.geolocating.io.CompressedFiles;
+import gnu.trove.map.hash.TLongObjectHashMap;
 
 public class RirIpBlocks extends IpBlocks<RirIpBlock> {
   
   public static final String RIR_FILENAME = "rir.txt";
   
-  private static final String RIR_DATE_FORMAT = "yyyyMMdd";
-  
   public static RirIpBlocks deserialize(final File file)
   throws IOException {
     try (final BufferedReader reader =
@@ -90,12 +86,29 @@ public class RirIpBlocks extends IpBlocks<RirIpBlock> {
     return block.split(newLastIp);
   }
   
+  /**
+   * Parses all RIR registry files within the directory and its
+   * subdirectories.
+   * <p>
+   * Registry files are detected by their name containing "delegated". They
+   * may be gzip or zip compressed as distributed by the registries (see
+   * {@link CompressedFiles}), in which case they are decompressed while being
+   * parsed. Files with an unsupported compression (like bzip2) are skipped
+   * with a warning on the standard error output, as the blocks of their
+   * registry are then missing. To include them, decompress them first.
+   * </p>
+   */
   public void parseDirectory(final File ripeDirectory)
   throws IOException, ParseException {
     for (final File file : ripeDirectory.listFiles()) {
       if (file.isDirectory()) {
         this.parseDirectory(file);
       } else if (file.getName().contains("delegated")) {
+        if (CompressedFiles.isUnsupported(file)) {
+          System.err.println("SKIPPING unsupported compression (decompress "
+              + "it to include its registry): " + file.getAbsolutePath());
+          continue;
+        }
         System.out.println(new Date() + " Parsing " + file.getAbsolutePath());
         this.parse(file);
       }
@@ -103,55 +116,21 @@ public class RirIpBlocks extends IpBlocks<RirIpBlock> {
   }
   
   public void parse(final File ripeFile) throws IOException {
-    try (final BufferedReader reader =
-        new BufferedReader(new FileReader(ripeFile))) {
-      String line = reader.readLine();
-      if (line == null) {
-        System.err.println("EMPTY: " + ripeFile.getAbsolutePath());
-        return;
-      }
-      while (line.startsWith("#")) { line = reader.readLine(); }
-      final String[] parts = line.split("\\|");
-      final String rirOffsetToUtc = parts.length > 6 ? parts[6] : "";
-
-      while (line != null) {
-        if (line.startsWith("#")) { line = reader.readLine(); continue; }
-        try {
-          this.parse(line, rirOffsetToUtc);
-        } catch (final Exception e) {
-          System.err.println(
-              "IGNORING invalid line: \"" + line + "\": " + e.getMessage());
-        }
-        line = reader.readLine();
-      }
+    final RirFileParser parser = new RirFileParser();
+    final TLongObjectHashMap<Instant> starts = new TLongObjectHashMap<>();
+    try (final InputStream input = CompressedFiles.open(ripeFile)) {
+      parser.parse(input, ripeFile.getAbsolutePath(),
+          (firstIp, lastIp, countryCode, startMillis) -> {
+            Instant start = starts.get(startMillis);
+            if (start == null) {
+              start = Instant.ofEpochMilli(startMillis);
+              starts.put(startMillis, start);
+            }
+            this.parse(firstIp, lastIp, countryCode, start);
+          });
     }
   }
   
-  private void parse(final String line, final String rirOffsetToUtc)
-  throws ParseException {
-    final String[] parts = line.split("\\|");
-
-    final String protocol = parts[2];
-    if (!protocol.equals("ipv4")) { return; }
-    
-    final String countryCode = parts[1];
-    if (countryCode.isEmpty() || countryCode.equals("*")) { return; }
-    
-    final String status = parts[6];
-    if (!status.equals("assigned") && !status.equals("allocated")) { return; }
-    
-    final long firstIp = IpBlock.ipToLong(parts[3]);
-    final long blockSize = Long.parseLong(parts[4]);
-    final long lastIp = firstIp + blockSize - 1;
-    
-    final String dateString = parts[5];
-    if (dateString.equals("00000000")) { return; }
-
-    final Instant start = RirIpBlocks.getInstant(dateString, rirOffsetToUtc);
-
-    this.parse(firstIp, lastIp, countryCode, start);
-  }
-  
   private void parse(final long firstIp, final long lastIp,
       final String countryCode, final Instant start) {
     for (final RirIpBlock block
@@ -160,16 +139,6 @@ public class RirIpBlocks extends IpBlocks<RirIpBlock> {
     }
   }
   
-  private static Instant getInstant(
-      final String dateString, final String rirOffsetToUtc)
-  throws ParseException {
-    final DateFormat dateFormat = new SimpleDateFormat(RIR_DATE_FORMAT);
-    dateFormat.setCalendar(Calendar.getInstance(
-        TimeZone.getTimeZone("UTC" + rirOffsetToUtc)));
-    final Date date = dateFormat.parse(dateString);
-    return date.toInstant();
-  }
-  
   public static void main(final String[] args)
   throws ParseException, IOException {
     if (args.length != 2) {
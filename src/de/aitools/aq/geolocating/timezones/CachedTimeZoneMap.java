@@ -1,14 +1,22 @@
 package de.aitools.aq.geolocating.timezones;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 import com.vividsolutions.jts.geom.Coordinate;
 
+/**
+ * A {@link TimeZoneMap} that caches its results in a {@link TimeZoneCache}.
+ * <p>
+ * The cache can be shared between several maps (with the same tolerance), and
+ * the map can be used by several threads.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
 public class CachedTimeZoneMap extends TimeZoneMap {
-  
-  private final Map<String, String> cachedTimeZones;
+
+  private final TimeZoneCache cache;
 
   public CachedTimeZoneMap()
   throws IOException {
@@ -17,23 +25,53 @@ public class CachedTimeZoneMap extends TimeZoneMap {
 
   public CachedTimeZoneMap(final double tolerance)
   throws IOException, IllegalArgumentException {
+    this(tolerance, new TimeZoneCache());
+  }
+
+  public CachedTimeZoneMap(final double tolerance, final TimeZoneCache cache)
+  throws IOException, IllegalArgumentException, NullPointerException {
     super(tolerance);
-    this.cachedTimeZones = new HashMap<>();
+    if (cache == null) { throw new NullPointerException(); }
+    this.cache = cache;
+  }
+
+  public TimeZoneCache getCache() {
+    return this.cache;
   }
-  
+
+  @Override
+  public String findTimeZone(
+      final double longitude, final double latitude, final String countryCode)
+  throws IOException, NullPointerException, IllegalStateException {
+    final TimeZoneCache.Entry entry =
+        this.cache.get(longitude, latitude, countryCode);
+    if (entry != null) {
+      return entry.getTimeZone();
+    } else {
+      return this.findAndCacheTimeZone(
+          new Coordinate(longitude, latitude), countryCode);
+    }
+  }
+
   @Override
   public String findTimeZone(
       final Coordinate coordinate, final String countryCode)
   throws IOException, NullPointerException, IllegalStateException {
-    final String key = String.format(
-        "%s %s %s", countryCode, coordinate.x, coordinate.y);
-    if (this.cachedTimeZones.containsKey(key)) {
-      return this.cachedTimeZones.get(key);
+    final TimeZoneCache.Entry entry =
+        this.cache.get(coordinate.x, coordinate.y, countryCode);
+    if (entry != null) {
+      return entry.getTimeZone();
     } else {
-      final String timeZone = super.findTimeZone(coordinate, countryCode);
-      this.cachedTimeZones.put(key, timeZone);
-      return timeZone;
+      return this.findAndCacheTimeZone(coordinate, countryCode);
     }
   }
 
+  private String findAndCacheTimeZone(
+      final Coordinate coordinate, final String countryCode)
+  throws IOException, NullPointerException, IllegalStateException {
+    final String timeZone = super.findTimeZone(coordinate, countryCode);
+    this.cache.put(coordinate.x, coordinate.y, countryCode, timeZone);
+    return timeZone;
+  }
+
 }
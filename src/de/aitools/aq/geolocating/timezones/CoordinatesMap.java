@@ -2,6 +2,7 @@ package de.aitools.aq.geolocating.timezones;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
@@ -38,7 +39,9 @@ public class CoordinatesMap {
   
   private final FilterFactory2 filterFactory;
 
-  private final SimpleFeatureSource featureSource;
+  private final URL shapeFile;
+
+  private SimpleFeatureSource featureSource;
   
   private final String polygonProperty;
 
@@ -50,22 +53,47 @@ public class CoordinatesMap {
     this.geometryFactory = JTSFactoryFinder.getGeometryFactory();
     this.filterFactory =
         CommonFactoryFinder.getFilterFactory2(GeoTools.getDefaultHints()); 
+    this.shapeFile = null;
     this.featureSource = featureSource;
     this.polygonProperty = polygonProperty;
   }
+
+  /**
+   * Creates a map for a shapefile that is only opened when it is first
+   * needed.
+   */
+  public CoordinatesMap(final URL shapeFile, final String polygonProperty)
+  throws NullPointerException {
+    if (shapeFile == null) { throw new NullPointerException(); }
+    if (polygonProperty == null) { throw new NullPointerException(); }
+    this.geometryFactory = JTSFactoryFinder.getGeometryFactory();
+    this.filterFactory =
+        CommonFactoryFinder.getFilterFactory2(GeoTools.getDefaultHints()); 
+    this.shapeFile = shapeFile;
+    this.featureSource = null;
+    this.polygonProperty = polygonProperty;
+  }
   
   protected GeometryFactory getGeometryFactory() {
     return this.geometryFactory;
   }
   
-  protected SimpleFeatureSource getFeatureSource() {
+  protected synchronized SimpleFeatureSource getFeatureSource()
+  throws IOException {
+    if (this.featureSource == null) {
+      this.featureSource = CoordinatesMap.loadShapeFile(this.shapeFile);
+    }
     return this.featureSource;
   }
   
   @Override
   public String toString() {
-    final SimpleFeatureType schema = this.featureSource.getSchema();
-    return schema.getTypeName() + ": " + DataUtilities.encodeType(schema);
+    try {
+      final SimpleFeatureType schema = this.getFeatureSource().getSchema();
+      return schema.getTypeName() + ": " + DataUtilities.encodeType(schema);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
   
   public FeatureIterator<SimpleFeature> find(
@@ -89,7 +117,7 @@ public class CoordinatesMap {
         this.filterFactory.literal(point),
         dwithin, "");
     final SimpleFeatureCollection filtered =
-        this.featureSource.getFeatures(toleranceFilter);
+        this.getFeatureSource().getFeatures(toleranceFilter);
     
     final FeatureIterator<SimpleFeature> iterator = filtered.features();
     return iterator;
@@ -102,8 +130,10 @@ public class CoordinatesMap {
     final Map<String, Serializable> parameters = new HashMap<>();
     parameters.put(
         ShapefileDataStoreFactory.URLP.key, url);
+    // The index can only be created next to files (and not in jars)
     parameters.put(
-        ShapefileDataStoreFactory.CREATE_SPATIAL_INDEX.key, Boolean.TRUE);
+        ShapefileDataStoreFactory.CREATE_SPATIAL_INDEX.key,
+        url.getProtocol().equals("file"));
     
     final ShapefileDataStore dataStore = (ShapefileDataStore)
         dataStoreFactory.createDataStore(parameters);
@@ -0,0 +1,560 @@
+package de.aitools.aq.geolocating.timezones;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+/**
+ * A thread-safe and size-bounded cache for the results of
+ * {@link TimeZoneMap#findTimeZone(double, double, String)}.
+ * <p>
+ * Entries are keyed by a long that packs the coordinates quantized to
+ * {@link #QUANTIZATION} degrees and the country code, so that a lookup creates
+ * no objects. Each entry stores the exact coordinates and country code and is
+ * only returned if they match the lookup, so that the cache never answers
+ * with the time zone of a different query that happens to have the same key.
+ * </p><p>
+ * The cache is split into segments that are locked independently. Each
+ * segment evicts entries with the clock (second chance) strategy once it is
+ * full. Hits, misses, and evictions are counted.
+ * </p><p>
+ * The cache does not know the tolerance of the maps that produced the time
+ * zones, so it should only be shared between maps with the same tolerance.
+ * </p><p>
+ * The cache can be written to and read from a file to reuse it in later runs.
+ * The file contains a version of the time zone data (see
+ * {@link #getDataChecksum()}) and the tolerance of the maps, and is ignored
+ * when it is read for a different version (for example, after the
+ * time zone shapefile has been updated). It also contains the
+ * {@link #getDataStamp()} of the data, so that the data files have only to
+ * be read again to check the version if they were modified.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class TimeZoneCache {
+
+  public static final int DEFAULT_CAPACITY = 1 << 20;
+
+  /**
+   * Size of the coordinate grid (in degrees) that is used for the keys.
+   */
+  public static final double QUANTIZATION = 1e-5;
+
+  private static final double QUANTA_PER_DEGREE = 1 / QUANTIZATION;
+
+  private static final int BITS_LATITUDE = 25;
+
+  private static final int BITS_COUNTRY = 10;
+
+  private static final int NUM_LETTERS = 26;
+
+  private static final long COUNTRY_NONE = 0;
+
+  private static final long COUNTRY_OTHER = (1L << BITS_COUNTRY) - 1;
+
+  private static final int NUM_SEGMENTS = 16;
+
+  private static final int FILE_MAGIC = 0x545a4332; // "TZC2"
+
+  private static final String[] DATA_RESOURCES = {
+    "tz_world.shp", "tz_world.shx", "tz_world.dbf", "zone.tab", "backward"
+  };
+
+  private static long dataChecksum = -1;
+
+  private static long dataStamp = -1;
+
+  private final Segment[] segments;
+
+  private final LongAdder hits;
+
+  private final LongAdder misses;
+
+  private final LongAdder evictions;
+
+  /**
+   * An entry of the cache.
+   */
+  public static class Entry {
+
+    private final double longitude;
+
+    private final double latitude;
+
+    private final String countryCode;
+
+    private final String timeZone;
+
+    private volatile boolean referenced;
+
+    private Entry(final double longitude, final double latitude,
+        final String countryCode, final String timeZone) {
+      this.longitude = longitude;
+      this.latitude = latitude;
+      this.countryCode = countryCode;
+      this.timeZone = timeZone;
+      this.referenced = false;
+    }
+
+    public double getLongitude() {
+      return this.longitude;
+    }
+
+    public double getLatitude() {
+      return this.latitude;
+    }
+
+    public String getCountryCode() {
+      return this.countryCode;
+    }
+
+    /**
+     * Gets the cached time zone, which may be null if there is none for the
+     * query.
+     */
+    public String getTimeZone() {
+      return this.timeZone;
+    }
+
+    private boolean isFor(final double longitude, final double latitude,
+        final String countryCode) {
+      return Double.doubleToLongBits(this.longitude)
+              == Double.doubleToLongBits(longitude)
+          && Double.doubleToLongBits(this.latitude)
+              == Double.doubleToLongBits(latitude)
+          && (this.countryCode == null
+              ? countryCode == null
+              : this.countryCode.equals(countryCode));
+    }
+
+  }
+
+  private static class Segment {
+
+    private final TLongObjectHashMap<Entry> entries;
+
+    private final long[] clock;
+
+    private int size;
+
+    private int hand;
+
+    private Segment(final int capacity) {
+      this.entries = new TLongObjectHashMap<>(capacity);
+      this.clock = new long[capacity];
+      this.size = 0;
+      this.hand = 0;
+    }
+
+  }
+
+  /**
+   * Creates a cache with {@link #DEFAULT_CAPACITY}.
+   */
+  public TimeZoneCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a cache that holds at most about <tt>capacity</tt> entries.
+   */
+  public TimeZoneCache(final int capacity)
+  throws IllegalArgumentException {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity: " + capacity);
+    }
+    final int segmentCapacity = Math.max(1, capacity / NUM_SEGMENTS);
+    this.segments = new Segment[NUM_SEGMENTS];
+    for (int s = 0; s < NUM_SEGMENTS; ++s) {
+      this.segments[s] = new Segment(segmentCapacity);
+    }
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+  }
+
+  /**
+   * Gets the cache entry for the query, or null if it is not cached.
+   */
+  public Entry get(final double longitude, final double latitude,
+      final String countryCode) {
+    final long key = TimeZoneCache.getKey(longitude, latitude, countryCode);
+    if (key >= 0) {
+      final Segment segment = this.getSegment(key);
+      final Entry entry;
+      synchronized (segment) {
+        entry = segment.entries.get(key);
+      }
+      if (entry != null && entry.isFor(longitude, latitude, countryCode)) {
+        entry.referenced = true;
+        this.hits.increment();
+        return entry;
+      }
+    }
+    this.misses.increment();
+    return null;
+  }
+
+  /**
+   * Caches the time zone (which may be null) for the query.
+   */
+  public void put(final double longitude, final double latitude,
+      final String countryCode, final String timeZone) {
+    final long key = TimeZoneCache.getKey(longitude, latitude, countryCode);
+    if (key < 0) { return; } // Not cacheable
+    final Entry entry = new Entry(longitude, latitude, countryCode, timeZone);
+    final Segment segment = this.getSegment(key);
+    synchronized (segment) {
+      if (segment.entries.put(key, entry) != null) {
+        return; // Replaced an entry with the same key
+      }
+      if (segment.size < segment.clock.length) {
+        segment.clock[segment.size] = key;
+        ++segment.size;
+        return;
+      }
+      while (true) {
+        final long candidateKey = segment.clock[segment.hand];
+        final Entry candidate = segment.entries.get(candidateKey);
+        if (candidate.referenced) {
+          candidate.referenced = false;
+          segment.hand = (segment.hand + 1) % segment.clock.length;
+        } else {
+          segment.entries.remove(candidateKey);
+          segment.clock[segment.hand] = key;
+          segment.hand = (segment.hand + 1) % segment.clock.length;
+          this.evictions.increment();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets a checksum of the time zone data files.
+   * <p>
+   * Files that are compiled from the time zone data store it to detect that
+   * they are outdated, together with the parameters of their format. As this
+   * reads all data files (including the large shapefile), such files should
+   * also store the {@link #getDataStamp()} and check their checksum with
+   * {@link #getDataChecksum(long, long)}. The data files are read only on the
+   * first call.
+   * </p>
+   */
+  public static synchronized long getDataChecksum()
+  throws IOException {
+    if (dataChecksum < 0) {
+      final CRC32 checksum = new CRC32();
+      final byte[] buffer = new byte[1 << 16];
+      for (final String resource : DATA_RESOURCES) {
+        checksum.update(resource.getBytes("UTF-8"));
+        try (final InputStream input =
+            TimeZoneCache.class.getResourceAsStream(resource)) {
+          if (input == null) { continue; }
+          int length = input.read(buffer);
+          while (length >= 0) {
+            checksum.update(buffer, 0, length);
+            length = input.read(buffer);
+          }
+        }
+      }
+      dataChecksum = checksum.getValue();
+    }
+    return dataChecksum;
+  }
+
+  /**
+   * Gets a checksum of the size and modification time of the time zone data
+   * files, which changes when the files are modified but can be computed
+   * without reading them.
+   */
+  public static synchronized long getDataStamp()
+  throws IOException {
+    if (dataStamp < 0) {
+      final CRC32 checksum = new CRC32();
+      final ByteBuffer bytes = ByteBuffer.allocate(2 * Long.BYTES);
+      for (final String resource : DATA_RESOURCES) {
+        checksum.update(resource.getBytes("UTF-8"));
+        final URL url = TimeZoneCache.class.getResource(resource);
+        if (url == null) { continue; }
+        final URLConnection connection = url.openConnection();
+        bytes.clear();
+        bytes.putLong(connection.getContentLengthLong());
+        bytes.putLong(connection.getLastModified());
+        checksum.update(bytes.array());
+        connection.getInputStream().close();
+      }
+      dataStamp = checksum.getValue();
+    }
+    return dataStamp;
+  }
+
+  /**
+   * Gets the {@link #getDataChecksum()}, but without reading the data files if
+   * their {@link #getDataStamp()} is the given one, in which case the given
+   * checksum (that was stored with the stamp) is returned.
+   */
+  public static long getDataChecksum(
+      final long dataStamp, final long dataChecksum)
+  throws IOException {
+    if (dataStamp == TimeZoneCache.getDataStamp()) {
+      return dataChecksum;
+    } else {
+      return TimeZoneCache.getDataChecksum();
+    }
+  }
+
+  /**
+   * Gets the version of cache files for maps with given tolerance, which
+   * mixes the file format, the time zone data and the tolerance.
+   */
+  private static long getDataVersion(
+      final long dataChecksum, final double tolerance) {
+    final ByteBuffer bytes =
+        ByteBuffer.allocate(Integer.BYTES + Long.BYTES + Double.BYTES);
+    bytes.putInt(FILE_MAGIC);
+    bytes.putLong(dataChecksum);
+    bytes.putDouble(tolerance);
+    final CRC32 checksum = new CRC32();
+    checksum.update(bytes.array());
+    return checksum.getValue();
+  }
+
+  /**
+   * Writes all entries of this cache to given file.
+   * <p>
+   * The entries are written to a temporary file next to the file first, which
+   * then replaces the file. So the file is either the complete old or new one
+   * if writing fails.
+   * </p>
+   * @param file The file to write to
+   * @param tolerance The tolerance of the maps that produced the entries
+   */
+  public void write(final File file, final double tolerance)
+  throws IOException {
+    final List<Entry> entries = new ArrayList<>(this.size());
+    for (final Segment segment : this.segments) {
+      synchronized (segment) {
+        for (int e = 0; e < segment.size; ++e) {
+          entries.add(segment.entries.get(segment.clock[e]));
+        }
+      }
+    }
+
+    final Map<String, Integer> stringIds = new HashMap<>();
+    final List<String> strings = new ArrayList<>();
+    for (final Entry entry : entries) {
+      for (final String string
+          : new String[] { entry.countryCode, entry.timeZone }) {
+        if (string != null && !stringIds.containsKey(string)) {
+          stringIds.put(string, strings.size());
+          strings.add(string);
+        }
+      }
+    }
+
+    // Replacing the file only when complete, as a partially written file
+    // could not be read in the next run
+    final File partialFile = new File(
+        file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".part");
+    try {
+      this.write(partialFile, tolerance, strings, stringIds, entries);
+      Files.move(partialFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (final IOException e) {
+      partialFile.delete();
+      throw e;
+    }
+  }
+
+  private void write(final File file, final double tolerance,
+      final List<String> strings, final Map<String, Integer> stringIds,
+      final List<Entry> entries)
+  throws IOException {
+    try (final DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new GZIPOutputStream(
+            new FileOutputStream(file))))) {
+      final long dataChecksum = TimeZoneCache.getDataChecksum();
+      output.writeInt(FILE_MAGIC);
+      output.writeLong(TimeZoneCache.getDataStamp());
+      output.writeLong(dataChecksum);
+      output.writeLong(TimeZoneCache.getDataVersion(dataChecksum, tolerance));
+      output.writeInt(strings.size());
+      for (final String string : strings) {
+        output.writeUTF(string);
+      }
+      output.writeInt(entries.size());
+      for (final Entry entry : entries) {
+        output.writeDouble(entry.longitude);
+        output.writeDouble(entry.latitude);
+        output.writeInt(entry.countryCode == null
+            ? -1 : stringIds.get(entry.countryCode));
+        output.writeInt(entry.timeZone == null
+            ? -1 : stringIds.get(entry.timeZone));
+      }
+    }
+  }
+
+  /**
+   * Adds the entries from given file that was written by
+   * {@link #write(File, double)} to this cache, unless the file does not
+   * exist or was written for other time zone data or another tolerance.
+   * <p>
+   * A file that can not be read (for example, as it is truncated) is reported
+   * on the standard error output and ignored, as the cache only saves time.
+   * No entries are added from such a file.
+   * </p>
+   * @param file The file to read from
+   * @param tolerance The tolerance of the maps that use this cache
+   * @return The number of entries that were read
+   */
+  public int read(final File file, final double tolerance)
+  throws IOException {
+    if (!file.exists()) { return 0; }
+    final List<Entry> entries = new ArrayList<>();
+    try (final DataInputStream input = new DataInputStream(
+        new BufferedInputStream(new GZIPInputStream(
+            new FileInputStream(file))))) {
+      if (input.readInt() != FILE_MAGIC) {
+        throw new IOException("Not a time zone cache file");
+      }
+      final long dataStamp = input.readLong();
+      final long dataChecksum = input.readLong();
+      final long dataVersion = input.readLong();
+      if (dataVersion != TimeZoneCache.getDataVersion(
+          TimeZoneCache.getDataChecksum(dataStamp, dataChecksum), tolerance)) {
+        return 0;
+      }
+      final String[] strings = new String[input.readInt()];
+      for (int s = 0; s < strings.length; ++s) {
+        strings[s] = input.readUTF();
+      }
+      final int numEntries = input.readInt();
+      for (int e = 0; e < numEntries; ++e) {
+        final double longitude = input.readDouble();
+        final double latitude = input.readDouble();
+        final int countryCodeId = input.readInt();
+        final int timeZoneId = input.readInt();
+        if (countryCodeId >= strings.length || timeZoneId >= strings.length) {
+          throw new IOException("Invalid string id in entry " + e);
+        }
+        entries.add(new Entry(longitude, latitude,
+            countryCodeId < 0 ? null : strings[countryCodeId],
+            timeZoneId < 0 ? null : strings[timeZoneId]));
+      }
+    } catch (final IOException e) {
+      System.err.println("IGNORING unreadable time zone cache " + file
+          + ": " + e);
+      return 0;
+    }
+
+    for (final Entry entry : entries) {
+      this.put(entry.longitude, entry.latitude,
+          entry.countryCode, entry.timeZone);
+    }
+    return entries.size();
+  }
+
+  /**
+   * Gets the number of cached entries.
+   */
+  public int size() {
+    int size = 0;
+    for (final Segment segment : this.segments) {
+      synchronized (segment) {
+        size += segment.size;
+      }
+    }
+    return size;
+  }
+
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  public long getEvictions() {
+    return this.evictions.sum();
+  }
+
+  /**
+   * Gets the ratio of lookups that were hits, or 0 if there were none.
+   */
+  public double getHitRate() {
+    final long hits = this.getHits();
+    final long lookups = hits + this.getMisses();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d entries, %d hits, %d misses (%.1f%% hits), "
+        + "%d evictions", this.size(), this.getHits(), this.getMisses(),
+        this.getHitRate() * 100, this.getEvictions());
+  }
+
+  private Segment getSegment(final long key) {
+    final long hash = key * 0x9E3779B97F4A7C15L;
+    return this.segments[(int) (hash >>> 60) & (NUM_SEGMENTS - 1)];
+  }
+
+  /**
+   * Packs quantized longitude (26 bits), quantized latitude (25 bits) and the
+   * country code (10 bits) into a long, or returns -1 if the coordinates are
+   * out of range.
+   */
+  private static long getKey(final double longitude, final double latitude,
+      final String countryCode) {
+    if (!(longitude >= -180 && longitude <= 180
+        && latitude >= -90 && latitude <= 90)) {
+      return -1;
+    }
+    final long quantizedLongitude =
+        Math.round((longitude + 180) * QUANTA_PER_DEGREE);
+    final long quantizedLatitude =
+        Math.round((latitude + 90) * QUANTA_PER_DEGREE);
+    return (((quantizedLongitude << BITS_LATITUDE) | quantizedLatitude)
+        << BITS_COUNTRY) | TimeZoneCache.getCountryId(countryCode);
+  }
+
+  private static long getCountryId(final String countryCode) {
+    if (countryCode == null) { return COUNTRY_NONE; }
+    if (countryCode.length() == 2) {
+      final int first = countryCode.charAt(0) - 'A';
+      final int second = countryCode.charAt(1) - 'A';
+      if (first >= 0 && first < NUM_LETTERS
+          && second >= 0 && second < NUM_LETTERS) {
+        return 1 + first * NUM_LETTERS + second;
+      }
+    }
+    return COUNTRY_OTHER;
+  }
+
+}
@@ -0,0 +1,506 @@
+package de.aitools.aq.geolocating.timezones;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+/**
+ * A precomputed raster over the time zone map for fast lookups.
+ * <p>
+ * Each cell of the grid stores the time zone of the map that covers the whole
+ * cell, if no other polygon of the map (also no uninhabited one) touches the
+ * cell. All other cells are border cells, for which
+ * {@link #getTimeZone(double, double)} returns null. For points in a
+ * non-border cell, {@link TimeZoneMap#findTimeZone(double, double, String)}
+ * would return the time zone of the cell if it belongs to the requested
+ * country (see {@link #getTimeZone(double, double, String)}), so the map can
+ * then skip its geometric search.
+ * </p><p>
+ * The grid is built with {@link #build(SimpleFeatureSource, double)}, which
+ * takes a while. {@link #main(String[])} builds it and writes it to a file.
+ * If such a file is put as {@link #RESOURCE} next to the shapefile, it is
+ * used by all {@link TimeZoneMap}s (see {@link #getDefault()}). A grid with the
+ * {@link #DEFAULT_RESOLUTION} needs about 50 MB of memory.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class TimeZoneGrid {
+
+  public static final double DEFAULT_RESOLUTION = 0.05;
+
+  public static final String RESOURCE = "tz_world.grid";
+
+  private static final String ATTRIBUTE_POLYGON = "the_geom";
+
+  private static final String ATTRIBUTE_TIME_ZONE = "TZID";
+
+  private static final String UNINHABITED = "uninhabited";
+
+  private static final short BORDER = 0;
+
+  private static final int FILE_MAGIC = 0x545a4732; // "TZG2"
+
+  /**
+   * How much (in degrees) a cell is enlarged when checking whether a time zone
+   * covers it, so that rounding errors when finding the cell of a point never
+   * matter.
+   */
+  private static final double CELL_MARGIN = 1e-9;
+
+  private static TimeZoneGrid defaultGrid = null;
+
+  private static boolean defaultGridLoaded = false;
+
+  private final double resolution;
+
+  private final int columns;
+
+  private final int rows;
+
+  private final String[] timeZones;
+
+  private final List<List<String>> countryCodes;
+
+  private final short[] cells;
+
+  private TimeZoneGrid(final double resolution, final String[] timeZones,
+      final short[] cells) {
+    this.resolution = resolution;
+    this.columns = TimeZoneGrid.getNumColumns(resolution);
+    this.rows = TimeZoneGrid.getNumRows(resolution);
+    this.timeZones = timeZones;
+    this.countryCodes = new ArrayList<>(timeZones.length);
+    for (final String timeZone : timeZones) {
+      List<String> countryCodes = Collections.emptyList();
+      if (timeZone != null) {
+        try {
+          countryCodes = TimeZonePolygons.getCountryCodes(timeZone);
+        } catch (final NoSuchElementException e) {
+          // Not in zone.tab: belongs to no country
+        }
+      }
+      this.countryCodes.add(countryCodes);
+    }
+    this.cells = cells;
+  }
+
+  public double getResolution() {
+    return this.resolution;
+  }
+
+  /**
+   * Gets the time zone of the cell of given point, or null if the cell is a
+   * border cell or the point is not on the map.
+   */
+  public String getTimeZone(final double longitude, final double latitude) {
+    return this.getTimeZone(longitude, latitude, null);
+  }
+
+  /**
+   * Gets the time zone of the cell of given point if it belongs to given
+   * country (or the country code is null), or null otherwise.
+   */
+  public String getTimeZone(final double longitude, final double latitude,
+      final String countryCode) {
+    if (!(longitude >= -180 && longitude <= 180
+        && latitude >= -90 && latitude <= 90)) {
+      return null;
+    }
+    final int column = Math.min(this.columns - 1,
+        (int) ((longitude + 180) / this.resolution));
+    final int row = Math.min(this.rows - 1,
+        (int) ((latitude + 90) / this.resolution));
+    final short cell = this.cells[row * this.columns + column];
+    if (countryCode == null
+        || this.countryCodes.get(cell).contains(countryCode)) {
+      return this.timeZones[cell];
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Gets the ratio of cells that are not border cells.
+   */
+  public double getInteriorRatio() {
+    int interior = 0;
+    for (final short cell : this.cells) {
+      if (cell != BORDER) { ++interior; }
+    }
+    return (double) interior / this.cells.length;
+  }
+
+  /**
+   * Gets the grid from {@link #RESOURCE} if it exists and was built for the
+   * current time zone data, or null otherwise. The grid is loaded only once.
+   */
+  public static synchronized TimeZoneGrid getDefault()
+  throws IOException {
+    if (!defaultGridLoaded) {
+      try (final InputStream input =
+          TimeZoneGrid.class.getResourceAsStream(RESOURCE)) {
+        if (input != null) {
+          defaultGrid = TimeZoneGrid.read(input);
+          if (defaultGrid == null) {
+            System.err.println("IGNORING outdated " + RESOURCE);
+          }
+        }
+      }
+      defaultGridLoaded = true;
+    }
+    return defaultGrid;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  // BUILDING
+  //////////////////////////////////////////////////////////////////////////////
+
+  private static class Polygon {
+
+    private final short timeZone;
+
+    private final Envelope envelope;
+
+    private final PreparedGeometry geometry;
+
+    private Polygon(final short timeZone, final Geometry geometry) {
+      this.timeZone = timeZone;
+      this.envelope = geometry.getEnvelopeInternal();
+      this.geometry = PreparedGeometryFactory.prepare(geometry);
+    }
+
+  }
+
+  /**
+   * Builds the grid for a time zone map.
+   * @param featureSource The time zone shapefile
+   * (see {@link TimeZoneMap#loadTimeZonesShapeFile()})
+   * @param resolution Width and height of a cell in degrees
+   */
+  public static TimeZoneGrid build(
+      final SimpleFeatureSource featureSource, final double resolution)
+  throws IOException {
+    final Map<String, Short> timeZoneIds = new HashMap<>();
+    final List<String> timeZones = new ArrayList<>();
+    timeZones.add(null); // BORDER
+    final List<Polygon> polygons = new ArrayList<>();
+    try (final FeatureIterator<SimpleFeature> featureIterator =
+        featureSource.getFeatures().features()) {
+      while (featureIterator.hasNext()) {
+        final SimpleFeature feature = featureIterator.next();
+        final String zoneName = (String)
+            feature.getAttribute(ATTRIBUTE_TIME_ZONE);
+        final Geometry geometry = (Geometry)
+            feature.getAttribute(ATTRIBUTE_POLYGON);
+        Short timeZone = BORDER; // uninhabited polygons are borders
+        if (!zoneName.equals(UNINHABITED)) {
+          timeZone = timeZoneIds.get(zoneName);
+          if (timeZone == null) {
+            timeZone = (short) timeZones.size();
+            timeZoneIds.put(zoneName, timeZone);
+            timeZones.add(zoneName);
+          }
+        }
+        polygons.add(new Polygon(timeZone, geometry));
+      }
+    }
+
+    final TimeZoneGrid grid = new TimeZoneGrid(resolution,
+        timeZones.toArray(new String[timeZones.size()]),
+        new short[getNumColumns(resolution) * getNumRows(resolution)]);
+    grid.fill(0, 0, grid.columns, grid.rows, polygons,
+        new GeometryFactory());
+    return grid;
+  }
+
+  /**
+   * Fills the cells in given rectangle of the grid, splitting it into four
+   * until a part is covered by one polygon or is a single cell.
+   */
+  private void fill(final int column, final int row,
+      final int numColumns, final int numRows,
+      final List<Polygon> candidates, final GeometryFactory geometryFactory) {
+    final Envelope envelope = new Envelope(
+        column * this.resolution - 180,
+        (column + numColumns) * this.resolution - 180,
+        row * this.resolution - 90,
+        (row + numRows) * this.resolution - 90);
+    envelope.expandBy(CELL_MARGIN);
+    final Geometry rectangle = geometryFactory.toGeometry(envelope);
+
+    final List<Polygon> intersecting = new ArrayList<>();
+    for (final Polygon polygon : candidates) {
+      if (polygon.envelope.intersects(envelope)
+          && polygon.geometry.intersects(rectangle)) {
+        intersecting.add(polygon);
+      }
+    }
+
+    if (intersecting.isEmpty()) {
+      return; // nothing here: BORDER to search for the nearest time zone
+    } else if (intersecting.size() == 1) {
+      final Polygon polygon = intersecting.get(0);
+      if (polygon.timeZone != BORDER && polygon.geometry.covers(rectangle)) {
+        for (int r = row; r < row + numRows; ++r) {
+          Arrays.fill(this.cells, r * this.columns + column,
+              r * this.columns + column + numColumns, polygon.timeZone);
+        }
+        return;
+      }
+    }
+
+    if (numColumns == 1 && numRows == 1) {
+      return; // BORDER
+    }
+    final int leftColumns = (numColumns + 1) / 2;
+    final int lowerRows = (numRows + 1) / 2;
+    this.fill(column, row, leftColumns, lowerRows,
+        intersecting, geometryFactory);
+    if (numColumns > leftColumns) {
+      this.fill(column + leftColumns, row, numColumns - leftColumns, lowerRows,
+          intersecting, geometryFactory);
+    }
+    if (numRows > lowerRows) {
+      this.fill(column, row + lowerRows, leftColumns, numRows - lowerRows,
+          intersecting, geometryFactory);
+      if (numColumns > leftColumns) {
+        this.fill(column + leftColumns, row + lowerRows,
+            numColumns - leftColumns, numRows - lowerRows,
+            intersecting, geometryFactory);
+      }
+    }
+  }
+
+  private static int getNumColumns(final double resolution) {
+    return (int) Math.ceil(360 / resolution);
+  }
+
+  private static int getNumRows(final double resolution) {
+    return (int) Math.ceil(180 / resolution);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  // IO
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Gets the version of grid files with given resolution, which mixes the
+   * file format, the time zone data (see
+   * {@link TimeZoneCache#getDataChecksum()}) and the resolution.
+   */
+  private static long getDataVersion(
+      final long dataChecksum, final double resolution) {
+    final ByteBuffer bytes =
+        ByteBuffer.allocate(Integer.BYTES + Long.BYTES + Double.BYTES);
+    bytes.putInt(FILE_MAGIC);
+    bytes.putLong(dataChecksum);
+    bytes.putDouble(resolution);
+    final CRC32 checksum = new CRC32();
+    checksum.update(bytes.array());
+    return checksum.getValue();
+  }
+
+  /**
+   * Writes the grid run-length encoded and gzipped to given file, together
+   * with the data version of the time zone map (see
+   * {@link TimeZoneCache#getDataStamp()}).
+   */
+  public void write(final File file)
+  throws IOException {
+    try (final DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new GZIPOutputStream(
+            new FileOutputStream(file))))) {
+      final long dataChecksum = TimeZoneCache.getDataChecksum();
+      output.writeInt(FILE_MAGIC);
+      output.writeLong(TimeZoneCache.getDataStamp());
+      output.writeLong(dataChecksum);
+      output.writeLong(
+          TimeZoneGrid.getDataVersion(dataChecksum, this.resolution));
+      output.writeDouble(this.resolution);
+      output.writeInt(this.timeZones.length);
+      for (int t = 1; t < this.timeZones.length; ++t) {
+        output.writeUTF(this.timeZones[t]);
+      }
+      int start = 0;
+      while (start < this.cells.length) {
+        final short value = this.cells[start];
+        int end = start + 1;
+        while (end < this.cells.length && this.cells[end] == value) { ++end; }
+        output.writeShort(value);
+        output.writeInt(end - start);
+        start = end;
+      }
+    }
+  }
+
+  /**
+   * Reads a grid that was written by {@link #write(File)}, or returns null if
+   * it was written for another data version of the time zone map.
+   */
+  public static TimeZoneGrid read(final InputStream inputStream)
+  throws IOException {
+    final DataInputStream input = new DataInputStream(
+        new BufferedInputStream(new GZIPInputStream(inputStream)));
+    final int magic = input.readInt();
+    if (magic != FILE_MAGIC) {
+      if ((magic >>> Byte.SIZE) == (FILE_MAGIC >>> Byte.SIZE)) {
+        return null; // Written by an older version of this class
+      }
+      throw new IOException("Not a time zone grid");
+    }
+    final long dataStamp = input.readLong();
+    final long dataChecksum = input.readLong();
+    final long dataVersion = input.readLong();
+    final double resolution = input.readDouble();
+    if (dataVersion != TimeZoneGrid.getDataVersion(
+        TimeZoneCache.getDataChecksum(dataStamp, dataChecksum), resolution)) {
+      return null;
+    }
+    final String[] timeZones = new String[input.readInt()];
+    for (int t = 1; t < timeZones.length; ++t) {
+      timeZones[t] = input.readUTF();
+    }
+    final short[] cells =
+        new short[getNumColumns(resolution) * getNumRows(resolution)];
+    int start = 0;
+    while (start < cells.length) {
+      final short value = input.readShort();
+      final int end = start + input.readInt();
+      Arrays.fill(cells, start, end, value);
+      start = end;
+    }
+    return new TimeZoneGrid(resolution, timeZones, cells);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  // MAIN
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Builds a grid, writes it to a file, and compares lookups with and without
+   * the grid for accuracy and speed.
+   * @param args Output file, and optionally the number of queries for the
+   * comparison and the resolution
+   */
+  public static void main(final String[] args)
+  throws IOException {
+    if (args.length < 1 || args.length > 3) {
+      System.err.println("Synopsis:");
+      System.err.println("  Builds the time zone grid and compares lookups");
+      System.err.println("  with and without it.");
+      System.err.println("Usage:");
+      System.err.println("   <output> [<queries> [<resolution>]]");
+      System.err.println("Where:");
+      System.err.println("  output");
+      System.err.println("    Is the file to which the grid is written. Copy it");
+      System.err.println("    to " + RESOURCE + " next to the shapefile to use it.");
+      System.err.println("  queries");
+      System.err.println("    Is the number of random queries for the");
+      System.err.println("    comparison (default: 100000)");
+      System.err.println("  resolution");
+      System.err.println("    Is the width and height of a cell in degrees");
+      System.err.println("    (default: " + DEFAULT_RESOLUTION + ")");
+      System.exit(1);
+    }
+    final File output = new File(args[0]);
+    final int numQueries = args.length >= 2 ? Integer.parseInt(args[1]) : 100000;
+    final double resolution = args.length == 3
+        ? Double.parseDouble(args[2])
+        : DEFAULT_RESOLUTION;
+
+    long time = System.currentTimeMillis();
+    final TimeZoneGrid grid = TimeZoneGrid.build(
+        TimeZoneMap.loadTimeZonesShapeFile(), resolution);
+    System.out.println("Built grid in "
+        + (System.currentTimeMillis() - time) + " ms, interior cells: "
+        + grid.getInteriorRatio());
+    grid.write(output);
+    System.out.println("Written to " + output + " ("
+        + output.length() + " bytes)");
+
+    // Queries around the main cities of the time zones, with and without the
+    // country of the time zone
+    final Random random = new Random(0);
+    final List<TimeZoneQuery> queries = new ArrayList<>(numQueries);
+    final List<TimeZones.TimeZone> cities = TimeZones.all();
+    while (queries.size() < numQueries) {
+      final TimeZones.TimeZone city = cities.get(random.nextInt(cities.size()));
+      final double longitude = Math.max(-180, Math.min(180,
+          city.getCoordinates().x + random.nextGaussian()));
+      final double latitude = Math.max(-90, Math.min(90,
+          city.getCoordinates().y + random.nextGaussian()));
+      queries.add(new TimeZoneQuery(longitude, latitude,
+          random.nextBoolean() ? city.getCountryCode() : null));
+    }
+
+    final TimeZoneMap exactMap = new TimeZoneMap();
+    exactMap.setGrid(null);
+    final TimeZoneMap gridMap = new TimeZoneMap();
+    gridMap.setGrid(grid);
+
+    time = System.currentTimeMillis();
+    final String[] exactTimeZones = new String[numQueries];
+    for (int q = 0; q < numQueries; ++q) {
+      exactTimeZones[q] = queries.get(q).findTimeZone(exactMap);
+    }
+    final long exactTime = System.currentTimeMillis() - time;
+
+    time = System.currentTimeMillis();
+    final String[] gridTimeZones = new String[numQueries];
+    for (int q = 0; q < numQueries; ++q) {
+      gridTimeZones[q] = queries.get(q).findTimeZone(gridMap);
+    }
+    final long gridTime = System.currentTimeMillis() - time;
+
+    int inInterior = 0;
+    int differences = 0;
+    for (int q = 0; q < numQueries; ++q) {
+      final TimeZoneQuery query = queries.get(q);
+      if (grid.getTimeZone(query.getLongitude(), query.getLatitude()) != null) {
+        ++inInterior;
+      }
+      final String exact = exactTimeZones[q];
+      if (exact == null
+          ? gridTimeZones[q] != null : !exact.equals(gridTimeZones[q])) {
+        ++differences;
+        System.out.println("DIFFERENT for " + query + ": "
+            + exact + " != " + gridTimeZones[q]);
+      }
+    }
+    System.out.println("Queries:                " + numQueries);
+    System.out.println("In interior cells:      " + inInterior);
+    System.out.println("Different time zones:   " + differences);
+    System.out.println("Time without grid (ms): " + exactTime);
+    System.out.println("Time with grid (ms):    " + gridTime);
+  }
+
+}
@@ -4,26 +4,32 @@ import java.io.IOException;
 import java.time.zone.ZoneRulesException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import org.geotools.data.simple.SimpleFeatureSource;
-import org.geotools.feature.FeatureIterator;
-import org.opengis.feature.simple.SimpleFeature;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Point;
 
 public class TimeZoneMap extends CoordinatesMap {
   
   private static final String ATTRIBUTE_POLYGON = "the_geom";
   
-  private static final String ATTRIBUTE_TIME_ZONE = "TZID";
-  
   public static final double DEFAULT_TOLERANCE = 7.5; // 7.5 degrees = 360 / 24 / 2 = half of the distance between meridians
   
+  /**
+   * Radius (in degrees) of the first search for the nearest time zone of a
+   * point that is in no time zone polygon.
+   */
+  private static final double INITIAL_SEARCH_RADIUS = 0.25;
+  
+  private static final double SEARCH_RADIUS_FACTOR = 4;
+  
   private double tolerance;
+  
+  private TimeZoneGrid grid;
+  
+  private final TimeZonePolygons polygons;
 
   public TimeZoneMap() throws IOException {
     this(DEFAULT_TOLERANCE);
@@ -31,8 +37,10 @@ public class TimeZoneMap extends CoordinatesMap {
 
   public TimeZoneMap(final double tolerance)
   throws IOException, IllegalArgumentException {
-    super(TimeZoneMap.loadTimeZonesShapeFile(), ATTRIBUTE_POLYGON);
+    super(CoordinatesMap.class.getResource("tz_world.shp"), ATTRIBUTE_POLYGON);
     this.setTolerance(tolerance);
+    this.setGrid(TimeZoneGrid.getDefault());
+    this.polygons = TimeZonePolygons.getDefault();
   }
   
   public void setTolerance(final double tolerance)
@@ -43,6 +51,15 @@ public class TimeZoneMap extends CoordinatesMap {
     this.tolerance = tolerance;
   }
   
+  /**
+   * Sets the grid that is used to find time zones of points that are not
+   * close to a border without searching the map. By default, this is
+   * {@link TimeZoneGrid#getDefault()}. Set to null to not use a grid.
+   */
+  public void setGrid(final TimeZoneGrid grid) {
+    this.grid = grid;
+  }
+  
   public String findTimeZone(
       final double longitude, final double latitude)
   throws IOException, NullPointerException, IllegalStateException,
@@ -65,82 +82,99 @@ public class TimeZoneMap extends CoordinatesMap {
   public String findTimeZone(
       final Coordinate coordinate, final String countryCode)
   throws IOException, NullPointerException, IllegalStateException {
-    final Point point = this.getGeometryFactory().createPoint(coordinate);
-    final List<ZoneWithDistance> zoneList = new ArrayList<>();
+    if (this.grid != null) {
+      final String zoneName =
+          this.grid.getTimeZone(coordinate.x, coordinate.y, countryCode);
+      if (zoneName != null) { return zoneName; }
+    }
     
-    try (final FeatureIterator<SimpleFeature> featureIterator =
-        this.find(coordinate, this.tolerance);) {
-      while (featureIterator.hasNext()) {
-        final SimpleFeature feature = featureIterator.next();
-        final String zoneName = (String)
-            feature.getAttribute(ATTRIBUTE_TIME_ZONE);
-        if (zoneName.equals("uninhabited")) { continue; }
-        if (countryCode != null) {
-          
-          switch (zoneName) {
-          case "Europe/Simferopol": // IANA puts it to RU, others to UA
-            if (!countryCode.equals("UA") && !countryCode.equals("RU")) { continue; }
-            break;
-          case "Pacific/Kiritimati": // IANA puts it to KI, but UM seems also reasonable
-            if (!countryCode.equals("UM") && !countryCode.equals("KI")) { continue; }
-            break;
-          default:
-            final String timeZoneCountryCode =
-              TimeZones.forId(zoneName).getCountryCode();
-            if (!countryCode.equals(timeZoneCountryCode)) { continue; }
-            break;
-          }
-          
+    final Point point = this.getGeometryFactory().createPoint(coordinate);
+    // Search with increasing radius: after searching all polygons within a
+    // radius, no polygon outside it can be nearer than a zone found within it
+    TimeZonePolygons.Polygon nearest = null;
+    double nearestDistance = Double.POSITIVE_INFINITY;
+    double previousRadius = -1;
+    double radius = Math.min(INITIAL_SEARCH_RADIUS, this.tolerance);
+    while (true) {
+      final List<PolygonWithDistance> candidates = new ArrayList<>();
+      for (final TimeZonePolygons.Polygon polygon
+          : this.polygons.find(point, radius, countryCode)) {
+        if (previousRadius >= 0
+            && polygon.isEnvelopeWithin(coordinate, previousRadius)) {
+          continue; // already checked for the previous radius
+        }
+        if (polygon.getEnvelopeDistance(coordinate) > this.tolerance) {
+          continue;
         }
-        final double distance = ((MultiPolygon)
-                feature.getAttribute(ATTRIBUTE_POLYGON)).distance(point);
-        if (distance == 0.0) { return zoneName; }
-        zoneList.add(new ZoneWithDistance(zoneName, distance));
+        if (polygon.covers(point)) { return polygon.getTimeZone(); }
+        candidates.add(new PolygonWithDistance(
+            polygon, polygon.getDistanceLowerBound(point)));
       }
-    }
-    
-    if (zoneList.isEmpty()) {
-      return null;
-    }
 
-    Collections.sort(zoneList, new Comparator<ZoneWithDistance>() {
-      @Override
-      public int compare(
-          final ZoneWithDistance o1, final ZoneWithDistance o2) {
-        return Double.compare(o1.getDistance(), o2.getDistance());
+      // Exact distances only for polygons that can be nearer than the
+      // nearest so far. Polygons are compared by shapefile order if they
+      // have the same distance, so that the first of them is chosen as before
+      Collections.sort(candidates);
+      for (final PolygonWithDistance candidate : candidates) {
+        if (candidate.distance > this.tolerance
+            || TimeZoneMap.compare(candidate.distance, candidate.polygon,
+                nearestDistance, nearest) > 0) {
+          break; // all others have at least the same lower bound
+        }
+        final double distance = candidate.polygon.distance(point);
+        if (distance <= this.tolerance && TimeZoneMap.compare(
+            distance, candidate.polygon, nearestDistance, nearest) < 0) {
+          nearest = candidate.polygon;
+          nearestDistance = distance;
+        }
       }
-    });
 
-    return zoneList.get(0).getZoneName();
+      if (nearestDistance <= radius || radius >= this.tolerance) {
+        return nearest == null ? null : nearest.getTimeZone();
+      }
+      previousRadius = radius;
+      radius = Math.min(radius * SEARCH_RADIUS_FACTOR, this.tolerance);
+    }
   }
   
-  public static SimpleFeatureSource loadTimeZonesShapeFile()
-  throws IOException {
-    return CoordinatesMap.loadShapeFile(
-        CoordinatesMap.class.getResource("tz_world.shp"));
+  private static int compare(
+      final double distance, final TimeZonePolygons.Polygon polygon,
+      final double otherDistance, final TimeZonePolygons.Polygon other) {
+    final int comparison = Double.compare(distance, otherDistance);
+    if (comparison != 0 || other == null) {
+      return comparison;
+    } else {
+      return polygon.compareTo(other);
+    }
   }
   
-  private static class ZoneWithDistance {
+  private static class PolygonWithDistance
+  implements Comparable<PolygonWithDistance> {
     
-    private final String zoneName;
+    private final TimeZonePolygons.Polygon polygon;
     
     private final double distance;
     
-    private ZoneWithDistance(final String zoneName, final double distance) {
-      this.zoneName = zoneName;
+    private PolygonWithDistance(
+        final TimeZonePolygons.Polygon polygon, final double distance) {
+      this.polygon = polygon;
       this.distance = distance;
     }
-    
-    public String getZoneName() {
-      return this.zoneName;
-    }
-    
-    public double getDistance() {
-      return this.distance;
+
+    @Override
+    public int compareTo(final PolygonWithDistance other) {
+      return TimeZoneMap.compare(
+          this.distance, this.polygon, other.distance, other.polygon);
     }
     
   }
   
+  public static SimpleFeatureSource loadTimeZonesShapeFile()
+  throws IOException {
+    return CoordinatesMap.loadShapeFile(
+        CoordinatesMap.class.getResource("tz_world.shp"));
+  }
+  
   public static void main(String[] args) throws IOException {
     final TimeZoneMap map = new TimeZoneMap();
     System.out.println(map);
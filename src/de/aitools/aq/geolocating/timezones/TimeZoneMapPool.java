@@ -0,0 +1,146 @@
+package de.aitools.aq.geolocating.timezones;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A pool of {@link TimeZoneMap}s to answer many time zone queries in parallel.
+ * <p>
+ * Each map of the pool is only used by one thread at a time. The pool itself
+ * is thread-safe: queries from different threads are answered by the same
+ * threads and maps.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class TimeZoneMapPool implements AutoCloseable {
+
+  private static final int QUERIES_PER_TASK = 256;
+
+  private final BlockingQueue<TimeZoneMap> timeZoneMaps;
+
+  private final ExecutorService executor;
+
+  /**
+   * Creates a pool of <tt>size</tt> time zone maps with the default tolerance.
+   */
+  public TimeZoneMapPool(final int size)
+  throws IOException, IllegalArgumentException {
+    this(size, TimeZoneMap.DEFAULT_TOLERANCE);
+  }
+
+  /**
+   * Creates a pool of <tt>size</tt> time zone maps with given tolerance.
+   */
+  public TimeZoneMapPool(final int size, final double tolerance)
+  throws IOException, IllegalArgumentException {
+    this(size, tolerance, null);
+  }
+
+  /**
+   * Creates a pool of <tt>size</tt> time zone maps with given tolerance that
+   * share given cache, or that do not cache if it is null.
+   */
+  public TimeZoneMapPool(final int size, final double tolerance,
+      final TimeZoneCache cache)
+  throws IOException, IllegalArgumentException {
+    if (size <= 0) {
+      throw new IllegalArgumentException("Pool size: " + size);
+    }
+    this.timeZoneMaps = new ArrayBlockingQueue<>(size);
+    for (int m = 0; m < size; ++m) {
+      if (cache == null) {
+        this.timeZoneMaps.add(new TimeZoneMap(tolerance));
+      } else {
+        this.timeZoneMaps.add(new CachedTimeZoneMap(tolerance, cache));
+      }
+    }
+    this.executor = Executors.newFixedThreadPool(size, runnable -> {
+      final Thread thread = new Thread(runnable, "time zone map pool");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Answers all queries in parallel.
+   * @param queries The queries (should not contain duplicates)
+   * @return A map from each query to its time zone, which may be null if
+   * {@link TimeZoneMap#findTimeZone(double, double, String)} found none
+   * @throws IOException If an error occurred reading the time zone map
+   */
+  public Map<TimeZoneQuery, String> findTimeZones(
+      final Collection<TimeZoneQuery> queries)
+  throws IOException {
+    final List<List<TimeZoneQuery>> tasks = new ArrayList<>();
+    List<TimeZoneQuery> task = null;
+    for (final TimeZoneQuery query : queries) {
+      if (task == null || task.size() == QUERIES_PER_TASK) {
+        task = new ArrayList<>(QUERIES_PER_TASK);
+        tasks.add(task);
+      }
+      task.add(query);
+    }
+
+    final List<Future<String[]>> futures = new ArrayList<>(tasks.size());
+    for (final List<TimeZoneQuery> taskQueries : tasks) {
+      futures.add(this.executor.submit(() -> this.findTimeZones(taskQueries)));
+    }
+
+    final Map<TimeZoneQuery, String> timeZones = new HashMap<>(queries.size());
+    try {
+      for (int t = 0; t < tasks.size(); ++t) {
+        final List<TimeZoneQuery> taskQueries = tasks.get(t);
+        final String[] taskTimeZones = futures.get(t).get();
+        for (int q = 0; q < taskTimeZones.length; ++q) {
+          timeZones.put(taskQueries.get(q), taskTimeZones[q]);
+        }
+      }
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw new RuntimeException(cause);
+      }
+    } catch (final InterruptedException e) {
+      for (final Future<String[]> future : futures) { future.cancel(true); }
+      throw new InterruptedIOException();
+    }
+    return timeZones;
+  }
+
+  private String[] findTimeZones(final List<TimeZoneQuery> queries)
+  throws IOException, InterruptedException {
+    final TimeZoneMap timeZoneMap = this.timeZoneMaps.take();
+    try {
+      final String[] timeZones = new String[queries.size()];
+      for (int q = 0; q < timeZones.length; ++q) {
+        timeZones[q] = queries.get(q).findTimeZone(timeZoneMap);
+      }
+      return timeZones;
+    } finally {
+      this.timeZoneMaps.add(timeZoneMap);
+    }
+  }
+
+  @Override
+  public void close() {
+    this.executor.shutdownNow();
+  }
+
+}
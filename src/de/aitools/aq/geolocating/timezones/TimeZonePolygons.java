@@ -0,0 +1,628 @@
+package de.aitools.aq.geolocating.timezones;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ * The inhabited polygons of the time zone shapefile in memory, indexed by an
+ * {@link STRtree}.
+ * <p>
+ * Besides the tree over all polygons, there is one tree per country over the
+ * polygons of that country's time zones, for lookups that are restricted to a
+ * country.
+ * </p><p>
+ * Each polygon also keeps the border of a simplified version (see
+ * {@link #SIMPLIFICATION_TOLERANCE}) that has far fewer points. It gives a
+ * cheap lower bound on the distance to the polygon (see
+ * {@link Polygon#getDistanceLowerBound(Point)}), so that the exact distance
+ * has only to be computed for polygons that can be the nearest one.
+ * </p><p>
+ * The polygons are loaded once (see {@link #getDefault()}) and shared by all
+ * {@link TimeZoneMap}s and threads. Note that JTS geometries are not
+ * immutable: a prepared polygon builds the index for point queries on its
+ * first query without any synchronization. This index is therefore built
+ * when the geometries of a polygon are created, before other threads can
+ * see them, and the geometries are not changed afterwards.
+ * </p><p>
+ * As reading the shapefile through GeoTools is slow, the polygons can be
+ * compiled into a binary file with {@link #main(String[])}. The file contains
+ * the zones with their countries and, for each polygon, its envelope and the
+ * WKB of the polygon and its simplified border. If it is put as
+ * {@link #RESOURCE} next to the shapefile, {@link #getDefault()} maps it into
+ * memory, builds the trees from the envelopes, and decodes the geometry of a
+ * polygon only when it is first needed.
+ * </p><p>
+ * The file also contains the version of the time zone data it was compiled
+ * from, and is ignored if the data have changed since. Note that the
+ * shapefile is still needed, as {@link TimeZoneMap} reads it, too.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class TimeZonePolygons {
+
+  private static final String ATTRIBUTE_POLYGON = "the_geom";
+
+  private static final String ATTRIBUTE_TIME_ZONE = "TZID";
+
+  private static final String UNINHABITED = "uninhabited";
+
+  /**
+   * The maximum distance (in degrees) between the border of a polygon and the
+   * border of its simplified version.
+   */
+  public static final double SIMPLIFICATION_TOLERANCE = 0.01;
+
+  public static final String RESOURCE = "tz_world.polygons";
+
+  private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+  private static final int FILE_MAGIC = 0x545a5032; // "TZP2"
+
+  private static TimeZonePolygons defaultPolygons = null;
+
+  private final List<Polygon> polygons;
+
+  private final STRtree tree;
+
+  private final Map<String, STRtree> countryTrees;
+
+  /**
+   * A time zone polygon of the map.
+   */
+  public static class Polygon implements Comparable<Polygon> {
+
+    private final int index;
+
+    private final String timeZone;
+
+    private final List<String> countryCodes;
+
+    private final Envelope envelope;
+
+    /**
+     * The WKB of the geometry and the simplified border (each preceded by its
+     * length), or null if the geometries were given directly.
+     */
+    private final ByteBuffer wkb;
+
+    private volatile Geometries geometries;
+
+    private Polygon(final int index, final String timeZone,
+        final List<String> countryCodes, final Geometry geometry) {
+      this.index = index;
+      this.timeZone = timeZone;
+      this.countryCodes = countryCodes;
+      this.envelope = geometry.getEnvelopeInternal();
+      this.wkb = null;
+      this.geometries = new Geometries(geometry,
+          TopologyPreservingSimplifier.simplify(
+              geometry, SIMPLIFICATION_TOLERANCE).getBoundary());
+    }
+
+    private Polygon(final int index, final String timeZone,
+        final List<String> countryCodes, final Envelope envelope,
+        final ByteBuffer wkb) {
+      this.index = index;
+      this.timeZone = timeZone;
+      this.countryCodes = countryCodes;
+      this.envelope = envelope;
+      this.wkb = wkb;
+      this.geometries = null;
+    }
+
+    /**
+     * Gets the position of the polygon in the shapefile.
+     */
+    public int getIndex() {
+      return this.index;
+    }
+
+    public String getTimeZone() {
+      return this.timeZone;
+    }
+
+    /**
+     * Gets the codes of the countries to which the time zone of this polygon
+     * belongs (none if it is not in zone.tab).
+     */
+    public List<String> getCountryCodes() {
+      return this.countryCodes;
+    }
+
+    public Geometry getGeometry() {
+      return this.getGeometries().geometry;
+    }
+
+    public Envelope getEnvelope() {
+      return this.envelope;
+    }
+
+    /**
+     * Checks whether the point is in the polygon or on its border.
+     */
+    public boolean covers(final Point point) {
+      return this.getGeometries().preparedGeometry.intersects(point);
+    }
+
+    public double distance(final Point point) {
+      return this.getGeometries().geometry.distance(point);
+    }
+
+    /**
+     * Gets a lower bound on {@link #distance(Point)} for a point that is not
+     * covered by this polygon.
+     * <p>
+     * As the point is outside, its distance to the polygon is its distance to
+     * the border, which differs by at most {@link #SIMPLIFICATION_TOLERANCE}
+     * from its distance to the simplified border. Only points within that
+     * band around the simplified border have to be checked against the
+     * original polygon to know whether they are nearer than another polygon.
+     * </p>
+     */
+    public double getDistanceLowerBound(final Point point) {
+      return Math.max(
+          this.getEnvelopeDistance(point.getCoordinate()),
+          this.getGeometries().simplifiedBorder.distance(point)
+            - SIMPLIFICATION_TOLERANCE);
+    }
+
+    /**
+     * Gets the distance of the point to the envelope of this polygon, which is
+     * never larger than {@link #distance(Point)}.
+     */
+    public double getEnvelopeDistance(final Coordinate coordinate) {
+      final double dx = Math.max(0, Math.max(
+          this.envelope.getMinX() - coordinate.x,
+          coordinate.x - this.envelope.getMaxX()));
+      final double dy = Math.max(0, Math.max(
+          this.envelope.getMinY() - coordinate.y,
+          coordinate.y - this.envelope.getMaxY()));
+      return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Checks whether the envelope of this polygon intersects the square
+     * around the point with given half side length, which is what
+     * {@link TimeZonePolygons#find(Point, double, String)} checks.
+     */
+    public boolean isEnvelopeWithin(
+        final Coordinate coordinate, final double distance) {
+      return this.envelope.getMinX() <= coordinate.x + distance
+          && this.envelope.getMaxX() >= coordinate.x - distance
+          && this.envelope.getMinY() <= coordinate.y + distance
+          && this.envelope.getMaxY() >= coordinate.y - distance;
+    }
+
+    @Override
+    public int compareTo(final Polygon other) {
+      return Integer.compare(this.index, other.index);
+    }
+
+    private Geometries getGeometries()
+    throws IllegalStateException {
+      Geometries geometries = this.geometries;
+      if (geometries == null) {
+        // Several threads may decode at the same time, but the results are
+        // the same
+        final ByteBuffer wkb = this.wkb.duplicate();
+        final WKBReader reader = new WKBReader();
+        try {
+          final Geometry geometry = reader.read(TimeZonePolygons.readBytes(wkb));
+          final Geometry simplifiedBorder =
+              reader.read(TimeZonePolygons.readBytes(wkb));
+          geometries = new Geometries(geometry, simplifiedBorder);
+        } catch (final ParseException e) {
+          throw new IllegalStateException(
+              "Invalid polygon " + this.index + " of " + this.timeZone, e);
+        }
+        this.geometries = geometries;
+      }
+      return geometries;
+    }
+
+  }
+
+  private static class Geometries {
+
+    private final Geometry geometry;
+
+    private final PreparedGeometry preparedGeometry;
+
+    private final Geometry simplifiedBorder;
+
+    private Geometries(
+        final Geometry geometry, final Geometry simplifiedBorder) {
+      this.geometry = geometry;
+      this.preparedGeometry = PreparedGeometryFactory.prepare(geometry);
+      this.simplifiedBorder = simplifiedBorder;
+
+      // JTS computes these on first use and does not synchronize that, so
+      // they are computed here before the object is shared
+      geometry.getEnvelopeInternal();
+      simplifiedBorder.getEnvelopeInternal();
+      if (!geometry.isEmpty()) {
+        // Builds the interval tree of the point locator of the prepared
+        // polygon, which is otherwise sorted by the first covers query
+        this.preparedGeometry.intersects(geometry.getInteriorPoint());
+      }
+    }
+
+  }
+
+  /**
+   * Loads the inhabited polygons of a time zone shapefile.
+   */
+  public TimeZonePolygons(final SimpleFeatureSource featureSource)
+  throws IOException {
+    this(TimeZonePolygons.readPolygons(featureSource));
+  }
+
+  private TimeZonePolygons(final List<Polygon> polygons) {
+    final STRtree tree = new STRtree();
+    final Map<String, STRtree> countryTrees = new HashMap<>();
+    for (final Polygon polygon : polygons) {
+      tree.insert(polygon.getEnvelope(), polygon);
+      for (final String countryCode : polygon.getCountryCodes()) {
+        STRtree countryTree = countryTrees.get(countryCode);
+        if (countryTree == null) {
+          countryTree = new STRtree();
+          countryTrees.put(countryCode, countryTree);
+        }
+        countryTree.insert(polygon.getEnvelope(), polygon);
+      }
+    }
+    // Build now: building during a query is not thread-safe
+    tree.build();
+    for (final STRtree countryTree : countryTrees.values()) {
+      countryTree.build();
+    }
+    this.polygons = Collections.unmodifiableList(polygons);
+    this.tree = tree;
+    this.countryTrees = countryTrees;
+  }
+
+  private static List<Polygon> readPolygons(
+      final SimpleFeatureSource featureSource)
+  throws IOException {
+    final List<Polygon> polygons = new ArrayList<>();
+    int index = 0;
+    try (final FeatureIterator<SimpleFeature> featureIterator =
+        featureSource.getFeatures().features()) {
+      while (featureIterator.hasNext()) {
+        final SimpleFeature feature = featureIterator.next();
+        final String zoneName = (String)
+            feature.getAttribute(ATTRIBUTE_TIME_ZONE);
+        if (!zoneName.equals(UNINHABITED)) {
+          polygons.add(new Polygon(index, zoneName,
+              TimeZonePolygons.getCountryCodesOrNone(zoneName),
+              (Geometry) feature.getAttribute(ATTRIBUTE_POLYGON)));
+        }
+        ++index;
+      }
+    }
+    return polygons;
+  }
+
+  /**
+   * Gets the polygons from {@link #RESOURCE} if it exists and was compiled
+   * for the current time zone data, or from
+   * {@link TimeZoneMap#loadTimeZonesShapeFile()} otherwise. The polygons are
+   * loaded only once.
+   */
+  public static synchronized TimeZonePolygons getDefault()
+  throws IOException {
+    if (defaultPolygons == null) {
+      final URL resource = TimeZonePolygons.class.getResource(RESOURCE);
+      if (resource != null) {
+        defaultPolygons = TimeZonePolygons.read(resource);
+        if (defaultPolygons == null) {
+          System.err.println("IGNORING outdated " + RESOURCE);
+        }
+      }
+      if (defaultPolygons == null) {
+        defaultPolygons =
+            new TimeZonePolygons(TimeZoneMap.loadTimeZonesShapeFile());
+      }
+    }
+    return defaultPolygons;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  // IO
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Gets the version of compiled polygon files, which mixes the file format,
+   * the time zone data (see {@link TimeZoneCache#getDataChecksum()}) and the
+   * {@link #SIMPLIFICATION_TOLERANCE}.
+   */
+  private static long getDataVersion(final long dataChecksum) {
+    final ByteBuffer bytes =
+        ByteBuffer.allocate(Integer.BYTES + Long.BYTES + Double.BYTES);
+    bytes.putInt(FILE_MAGIC);
+    bytes.putLong(dataChecksum);
+    bytes.putDouble(SIMPLIFICATION_TOLERANCE);
+    final CRC32 checksum = new CRC32();
+    checksum.update(bytes.array());
+    return checksum.getValue();
+  }
+
+  /**
+   * Writes the polygons to a file that can be read by {@link #read(URL)}.
+   */
+  public void write(final File file)
+  throws IOException {
+    final Map<String, Integer> timeZoneIds = new HashMap<>();
+    final List<String> timeZones = new ArrayList<>();
+    for (final Polygon polygon : this.polygons) {
+      if (!timeZoneIds.containsKey(polygon.getTimeZone())) {
+        timeZoneIds.put(polygon.getTimeZone(), timeZones.size());
+        timeZones.add(polygon.getTimeZone());
+      }
+    }
+
+    final WKBWriter writer = new WKBWriter();
+    try (final DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      final long dataChecksum = TimeZoneCache.getDataChecksum();
+      output.writeInt(FILE_MAGIC);
+      output.writeLong(TimeZoneCache.getDataStamp());
+      output.writeLong(dataChecksum);
+      output.writeLong(TimeZonePolygons.getDataVersion(dataChecksum));
+      output.writeInt(timeZones.size());
+      for (final String timeZone : timeZones) {
+        TimeZonePolygons.writeBytes(output, timeZone.getBytes(CHARSET));
+        final List<String> countryCodes =
+            TimeZonePolygons.getCountryCodesOrNone(timeZone);
+        output.writeInt(countryCodes.size());
+        for (final String countryCode : countryCodes) {
+          TimeZonePolygons.writeBytes(output, countryCode.getBytes(CHARSET));
+        }
+      }
+      output.writeInt(this.polygons.size());
+      for (final Polygon polygon : this.polygons) {
+        output.writeInt(polygon.getIndex());
+        output.writeInt(timeZoneIds.get(polygon.getTimeZone()));
+        final Envelope envelope = polygon.getEnvelope();
+        output.writeDouble(envelope.getMinX());
+        output.writeDouble(envelope.getMaxX());
+        output.writeDouble(envelope.getMinY());
+        output.writeDouble(envelope.getMaxY());
+        final Geometries geometries = polygon.getGeometries();
+        final byte[] geometry = writer.write(geometries.geometry);
+        final byte[] simplifiedBorder =
+            writer.write(geometries.simplifiedBorder);
+        output.writeInt(2 * Integer.BYTES
+            + geometry.length + simplifiedBorder.length);
+        TimeZonePolygons.writeBytes(output, geometry);
+        TimeZonePolygons.writeBytes(output, simplifiedBorder);
+      }
+    }
+  }
+
+  /**
+   * Reads polygons that were written by {@link #write(File)}, or returns null
+   * if they were compiled for another version of the time zone data. Files
+   * are mapped into memory, other resources are read completely.
+   */
+  public static TimeZonePolygons read(final URL url)
+  throws IOException {
+    final ByteBuffer buffer;
+    if (url.getProtocol().equals("file")) {
+      try (final FileChannel channel = FileChannel.open(
+          Paths.get(URI.create(url.toString())), StandardOpenOption.READ)) {
+        buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      }
+    } else {
+      try (final InputStream input = url.openStream()) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[1 << 16];
+        int length = input.read(chunk);
+        while (length >= 0) {
+          bytes.write(chunk, 0, length);
+          length = input.read(chunk);
+        }
+        buffer = ByteBuffer.wrap(bytes.toByteArray());
+      }
+    }
+    return TimeZonePolygons.read(buffer);
+  }
+
+  private static TimeZonePolygons read(final ByteBuffer buffer)
+  throws IOException {
+    final int magic = buffer.getInt();
+    if (magic != FILE_MAGIC) {
+      if ((magic >>> Byte.SIZE) == (FILE_MAGIC >>> Byte.SIZE)) {
+        return null; // Written by an older version of this class
+      }
+      throw new IOException("Not a time zone polygons file");
+    }
+    final long dataStamp = buffer.getLong();
+    final long dataChecksum = buffer.getLong();
+    final long dataVersion = buffer.getLong();
+    if (dataVersion != TimeZonePolygons.getDataVersion(
+        TimeZoneCache.getDataChecksum(dataStamp, dataChecksum))) {
+      return null;
+    }
+    final String[] timeZones = new String[buffer.getInt()];
+    final List<List<String>> countryCodess = new ArrayList<>();
+    for (int t = 0; t < timeZones.length; ++t) {
+      timeZones[t] = new String(TimeZonePolygons.readBytes(buffer), CHARSET);
+      final String[] countryCodes = new String[buffer.getInt()];
+      for (int c = 0; c < countryCodes.length; ++c) {
+        countryCodes[c] =
+            new String(TimeZonePolygons.readBytes(buffer), CHARSET);
+      }
+      countryCodess.add(Collections.unmodifiableList(
+          Arrays.asList(countryCodes)));
+    }
+
+    final int numPolygons = buffer.getInt();
+    final List<Polygon> polygons = new ArrayList<>(numPolygons);
+    for (int p = 0; p < numPolygons; ++p) {
+      final int index = buffer.getInt();
+      final int timeZone = buffer.getInt();
+      final Envelope envelope = new Envelope(buffer.getDouble(),
+          buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+      final int length = buffer.getInt();
+      final ByteBuffer wkb = buffer.slice();
+      wkb.limit(length);
+      buffer.position(buffer.position() + length);
+      polygons.add(new Polygon(index, timeZones[timeZone],
+          countryCodess.get(timeZone), envelope, wkb));
+    }
+    return new TimeZonePolygons(polygons);
+  }
+
+  private static void writeBytes(final DataOutputStream output,
+      final byte[] bytes)
+  throws IOException {
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  private static byte[] readBytes(final ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Like {@link #getCountryCodes(String)}, but returns no countries for
+   * time zones that are not in zone.tab.
+   */
+  private static List<String> getCountryCodesOrNone(final String timeZone) {
+    try {
+      return TimeZonePolygons.getCountryCodes(timeZone);
+    } catch (final NoSuchElementException e) {
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Gets the codes of the countries to which a time zone belongs.
+   * @throws NoSuchElementException If the time zone is not in zone.tab
+   */
+  public static List<String> getCountryCodes(final String timeZone)
+  throws NoSuchElementException {
+    switch (timeZone) {
+    case "Europe/Simferopol": // IANA puts it to RU, others to UA
+      return Arrays.asList("UA", "RU");
+    case "Pacific/Kiritimati": // IANA puts it to KI, but UM seems also reasonable
+      return Arrays.asList("UM", "KI");
+    default:
+      return Collections.singletonList(
+          TimeZones.forId(timeZone).getCountryCode());
+    }
+  }
+
+  /**
+   * Gets all polygons in the order of the shapefile.
+   */
+  public List<Polygon> getPolygons() {
+    return this.polygons;
+  }
+
+  /**
+   * Gets the polygons whose envelope is within given distance of the point,
+   * in the order of the shapefile.
+   * @param point The point
+   * @param distance The distance
+   * @param countryCode The country to which the time zones of the polygons
+   * have to belong, or null for any country
+   */
+  public List<Polygon> find(final Point point, final double distance,
+      final String countryCode) {
+    final STRtree tree = countryCode == null
+        ? this.tree
+        : this.countryTrees.get(countryCode);
+    if (tree == null) { return Collections.emptyList(); }
+    final Envelope envelope = new Envelope(point.getCoordinate());
+    envelope.expandBy(distance);
+    @SuppressWarnings("unchecked")
+    final List<Polygon> candidates = tree.query(envelope);
+    Collections.sort(candidates);
+    return candidates;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  // MAIN
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Compiles the time zone shapefile into a file for fast loading.
+   * @param args The output file
+   */
+  public static void main(final String[] args)
+  throws IOException {
+    if (args.length != 1) {
+      System.err.println("Synopsis:");
+      System.err.println("  Compiles the time zone shapefile for fast loading.");
+      System.err.println("Usage:");
+      System.err.println("   <output>");
+      System.err.println("Where:");
+      System.err.println("  output");
+      System.err.println("    Is the file to which the polygons are written.");
+      System.err.println("    Copy it to " + RESOURCE + " next to the");
+      System.err.println("    shapefile to use it.");
+      System.exit(1);
+    }
+    final File output = new File(args[0]);
+    long time = System.currentTimeMillis();
+    final TimeZonePolygons polygons =
+        new TimeZonePolygons(TimeZoneMap.loadTimeZonesShapeFile());
+    System.out.println("Read " + polygons.getPolygons().size()
+        + " polygons from the shapefile in "
+        + (System.currentTimeMillis() - time) + " ms");
+    polygons.write(output);
+    System.out.println("Written to " + output + " ("
+        + output.length() + " bytes)");
+    time = System.currentTimeMillis();
+    final TimeZonePolygons compiled =
+        TimeZonePolygons.read(output.toURI().toURL());
+    System.out.println("Read " + compiled.getPolygons().size()
+        + " polygons from the compiled file in "
+        + (System.currentTimeMillis() - time) + " ms");
+  }
+
+}
@@ -0,0 +1,83 @@
+package de.aitools.aq.geolocating.timezones;
+
+import java.io.IOException;
+
+/**
+ * A query for {@link TimeZoneMap#findTimeZone(double, double, String)}.
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
+public class TimeZoneQuery {
+
+  private final double longitude;
+
+  private final double latitude;
+
+  private final String countryCode;
+
+  /**
+   * Creates a new query.
+   * @param longitude The longitude of the point
+   * @param latitude The latitude of the point
+   * @param countryCode The country the time zone has to belong to, or null
+   * for any country
+   */
+  public TimeZoneQuery(
+      final double longitude, final double latitude, final String countryCode) {
+    this.longitude = longitude;
+    this.latitude = latitude;
+    this.countryCode = countryCode;
+  }
+
+  public double getLongitude() {
+    return this.longitude;
+  }
+
+  public double getLatitude() {
+    return this.latitude;
+  }
+
+  public String getCountryCode() {
+    return this.countryCode;
+  }
+
+  /**
+   * Finds the time zone for this query using given map.
+   */
+  public String findTimeZone(final TimeZoneMap timeZoneMap)
+  throws IOException {
+    return timeZoneMap.findTimeZone(
+        this.longitude, this.latitude, this.countryCode);
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) { return true; }
+    if (!(obj instanceof TimeZoneQuery)) { return false; }
+    final TimeZoneQuery other = (TimeZoneQuery) obj;
+    return Double.doubleToLongBits(this.longitude)
+            == Double.doubleToLongBits(other.longitude)
+        && Double.doubleToLongBits(this.latitude)
+            == Double.doubleToLongBits(other.latitude)
+        && (this.countryCode == null
+            ? other.countryCode == null
+            : this.countryCode.equals(other.countryCode));
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = Double.hashCode(this.longitude);
+    hash = 31 * hash + Double.hashCode(this.latitude);
+    if (this.countryCode != null) {
+      hash = 31 * hash + this.countryCode.hashCode();
+    }
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return this.countryCode + " " + this.longitude + " " + this.latitude;
+  }
+
+}
@@ -18,27 +18,44 @@ import java.util.regex.Pattern;
 
 import com.vividsolutions.jts.geom.Coordinate;
 
+/**
+ * Registry of the time zones of the zone.tab file (plus the old ids of the
+ * backward file).
+ * <p>
+ * The registry is loaded once when it is first used (by the
+ * initialization-on-demand holder idiom) and not changed afterwards, so all
+ * lookups are lock-free and can happen from any number of threads.
+ * </p>
+ *
+ * @author johannes.kiesel@uni-weimar.de
+ *
+ */
 public class TimeZones {
   
   private static final Pattern COORDINATE_PATTERN = Pattern.compile("[+-]\\d*");
   
-  private static final List<TimeZone> ALL = new ArrayList<>();
-  
-  private static final Map<String, TimeZone> BY_ID =
-      new HashMap<>();
-  
-  private static final Map<String, List<TimeZone>> BY_COUNTRY_CODE =
-      new HashMap<>();
+  /**
+   * The number of distinct values that {@link #getCountryIndex(String)} can
+   * return for country codes of two upper case letters.
+   */
+  public static final int NUM_COUNTRY_INDICES = 26 * 26;
   
   private TimeZones() { }
   
+  /**
+   * Gets all time zones of the zone.tab, where each time zone is at its index
+   * (see {@link TimeZone#getIndex()}).
+   */
   public static List<TimeZone> all() {
-    return Collections.unmodifiableList(ALL);
+    return Registry.INSTANCE.all;
   }
   
   public static TimeZone forId(final String id) throws NoSuchElementException {
-    TimeZones.init();
-    final TimeZone timeZone = BY_ID.get(id);
+    final Registry registry = Registry.INSTANCE;
+    TimeZone timeZone = registry.byId.get(id);
+    if (timeZone == null) {
+      timeZone = registry.byOldId.get(id);
+    }
     if (timeZone == null) {
       throw new NoSuchElementException(id);
     } else {
@@ -51,17 +68,72 @@ public class TimeZones {
   }
   
   public static List<TimeZone> forCountryCode(final String countryCode) {
-    TimeZones.init();
-    final List<TimeZone> timeZones = BY_COUNTRY_CODE.get(countryCode);
+    final List<TimeZone> timeZones =
+        Registry.INSTANCE.byCountryCode.get(countryCode);
     if (timeZones == null) {
       return Collections.emptyList();
     } else {
-      return Collections.unmodifiableList(timeZones);
+      return timeZones;
     }
   }
   
-  private static synchronized void init() {
-    if (ALL.isEmpty()) {
+  /**
+   * Gets the index of the time zone with the given id in {@link #all()}, or
+   * -1 if there is no time zone with exactly this id.
+   * <p>
+   * Only the ids of the zone.tab are indexed, not the old ones of the
+   * backward file that {@link #forId(String)} also accepts. So two ids have
+   * the same index if and only if they are equal.
+   * </p>
+   */
+  public static int getIndex(final String id) {
+    if (id == null) { return -1; }
+    final TimeZone timeZone = Registry.INSTANCE.byId.get(id);
+    if (timeZone == null) {
+      return -1;
+    } else {
+      return timeZone.getIndex();
+    }
+  }
+  
+  /**
+   * Gets a small index (below {@link #NUM_COUNTRY_INDICES}) for a country
+   * code of two upper case letters, or -1 for all other strings.
+   * <p>
+   * Two country codes have the same index if and only if they are equal or
+   * both have index -1.
+   * </p>
+   */
+  public static int getCountryIndex(final String countryCode) {
+    if (countryCode == null || countryCode.length() != 2) { return -1; }
+    final char first = countryCode.charAt(0);
+    final char second = countryCode.charAt(1);
+    if (first < 'A' || first > 'Z' || second < 'A' || second > 'Z') {
+      return -1;
+    }
+    return (first - 'A') * 26 + (second - 'A');
+  }
+  
+  /**
+   * The immutable time zone data, which is loaded when {@link #INSTANCE} is
+   * first accessed.
+   */
+  private static final class Registry {
+    
+    private static final Registry INSTANCE = new Registry();
+    
+    private final List<TimeZone> all;
+    
+    private final Map<String, TimeZone> byId;
+    
+    private final Map<String, TimeZone> byOldId;
+    
+    private final Map<String, List<TimeZone>> byCountryCode;
+    
+    private Registry() {
+      final List<TimeZone> all = new ArrayList<>();
+      final Map<String, TimeZone> byId = new HashMap<>();
+      final Map<String, List<TimeZone>> byCountryCode = new HashMap<>();
       final InputStream zoneTab =
           TimeZones.class.getResourceAsStream("zone.tab");
       
@@ -70,17 +142,18 @@ public class TimeZones {
         String line = null;
         while ((line = reader.readLine()) != null) {
           if (line.startsWith("#") || line.trim().isEmpty()) { continue; }
-          final TimeZone timeZone = TimeZone.parseFromZoneTab(line);
-          ALL.add(timeZone);
+          final TimeZone timeZone =
+              TimeZone.parseFromZoneTab(line, all.size());
+          all.add(timeZone);
           
-          BY_ID.put(timeZone.getId().toString(), timeZone);
+          byId.putIfAbsent(timeZone.getId().toString(), timeZone);
           
           final String countryCode = timeZone.getCountryCode();
           List<TimeZone> timeZonesByCountryCode =
-              BY_COUNTRY_CODE.get(countryCode);
+              byCountryCode.get(countryCode);
           if (timeZonesByCountryCode == null) {
             timeZonesByCountryCode = new ArrayList<>();
-            BY_COUNTRY_CODE.put(countryCode, timeZonesByCountryCode);
+            byCountryCode.put(countryCode, timeZonesByCountryCode);
           }
           timeZonesByCountryCode.add(timeZone);
         }
@@ -88,6 +161,7 @@ public class TimeZones {
         throw new RuntimeException("ERROR loading timezone data", e);
       }
       
+      final Map<String, TimeZone> byOldId = new HashMap<>();
       final InputStream backward =
           TimeZones.class.getResourceAsStream("backward");
       
@@ -99,16 +173,29 @@ public class TimeZones {
           final String[] parts = line.split("\\s+");
           final String target = parts[1];
           final String old = parts[2];
-          try {
-            BY_ID.put(old, TimeZones.forId(target));
-          } catch (final NoSuchElementException nse) {
-            // No country zones, just ignore them
+          TimeZone timeZone = byId.get(target);
+          if (timeZone == null) {
+            timeZone = byOldId.get(target);
+          }
+          if (timeZone != null) {
+            byOldId.put(old, timeZone);
           }
+          // No country zones otherwise, just ignore them
         }
       } catch (final IOException e) {
         throw new RuntimeException("ERROR loading timezone data", e);
       }
+      
+      for (final Map.Entry<String, List<TimeZone>> entry
+          : byCountryCode.entrySet()) {
+        entry.setValue(Collections.unmodifiableList(entry.getValue()));
+      }
+      this.all = Collections.unmodifiableList(all);
+      this.byId = byId;
+      this.byOldId = byOldId;
+      this.byCountryCode = byCountryCode;
     }
+    
   }
   
   public static class TimeZone {
@@ -117,15 +204,19 @@ public class TimeZones {
     
     private final String countryCode;
     
+    private final int index;
+    
     private final String[] nameParts;
     
     private final Coordinate coordinates;
     
     private TimeZone(
-        final String name, final String countryCode, String coordinatesString) {
+        final String name, final String countryCode, String coordinatesString,
+        final int index) {
       if (countryCode == null) { throw new NullPointerException(); }
       this.id = ZoneId.of(name);
       this.countryCode = countryCode;
+      this.index = index;
       this.nameParts = name.split("/");
       
       this.coordinates = TimeZone.parseCoordinates(coordinatesString);
@@ -139,6 +230,13 @@ public class TimeZones {
       return this.countryCode;
     }
     
+    /**
+     * Gets the index of this time zone in {@link TimeZones#all()}.
+     */
+    public int getIndex() {
+      return this.index;
+    }
+    
     public boolean hasStateName() {
       return this.nameParts.length > 2;
     }
@@ -182,13 +280,14 @@ public class TimeZones {
       return this.getId().getId();
     }
     
-    private static TimeZone parseFromZoneTab(final String tzRecord) {
+    private static TimeZone parseFromZoneTab(
+        final String tzRecord, final int index) {
       final String[] parts = tzRecord.split("\t");
       final String countryCode = parts[0];
       final String coordinatesString = parts[1];
       final String name = parts[2];
       
-      return new TimeZone(name, countryCode, coordinatesString);
+      return new TimeZone(name, countryCode, coordinatesString, index);
     }
     
     private static Coordinate parseCoordinates(final String coordinatesString) {